@@ -0,0 +1,187 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Back-pressure gate shared by the routers that block while a destination is above its High Water Mark.
+ * <p/>
+ * Routers waiting on the same destination (identified by name e.g. "jms:queue:orders") queue up on
+ * the same gate. A waiter re-checks the destination when the gate is {@link #signal(String) signalled}
+ * (e.g. when a file is removed from a watched directory, or the depth of a queue is refreshed), and
+ * otherwise backs off exponentially, starting at {@link #MIN_BACKOFF} ms and doubling up to the
+ * supplied max backoff.
+ * <p/>
+ * Gates only exist while there are waiters, so signalling a destination nobody waits on costs a map lookup.
+ */
+public final class BackPressureGate {
+
+    /**
+     * Initial number of ms between checks, when the gate is not signalled.
+     */
+    public static final long MIN_BACKOFF = 5;
+
+    private static final ConcurrentMap<String, BackPressureGate> GATES = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition signalled = lock.newCondition();
+    private volatile long signalCount;
+    // Guarded by the GATES map entry...
+    private int waiterCount;
+
+    /**
+     * Private constructor.
+     */
+    private BackPressureGate() {
+    }
+
+    /**
+     * Wait until there's capacity on a destination.
+     *
+     * @param destination Destination name.
+     * @param check       The capacity check.
+     * @param timeout     Max number of ms to wait.
+     * @param maxBackoff  Max number of ms between checks, when the gate is not signalled.
+     * @param <E>         The exception type thrown by the capacity check.
+     * @return True if the destination has capacity, false if timed out.
+     * @throws E                    Error checking capacity.
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    public static <E extends Exception> boolean await(final String destination, final CapacityCheck<E> check, final long timeout, final long maxBackoff) throws E, InterruptedException {
+        final BackPressureGate gate = GATES.compute(destination, (name, existingGate) -> {
+            final BackPressureGate backPressureGate = (existingGate != null ? existingGate : new BackPressureGate());
+            backPressureGate.waiterCount++;
+            return backPressureGate;
+        });
+
+        try {
+            return gate.await(check, timeout, Math.max(maxBackoff, MIN_BACKOFF));
+        } finally {
+            GATES.computeIfPresent(destination, (name, backPressureGate) -> --backPressureGate.waiterCount == 0 ? null : backPressureGate);
+        }
+    }
+
+    /**
+     * Wake up the routers waiting on a destination, so they re-check its capacity.
+     *
+     * @param destination Destination name.
+     */
+    public static void signal(final String destination) {
+        final BackPressureGate gate = GATES.get(destination);
+        if (gate != null) {
+            gate.signal();
+        }
+    }
+
+    /**
+     * Is anyone waiting on a destination.
+     *
+     * @param destination Destination name.
+     * @return True if there's at least one waiter.
+     */
+    public static boolean hasWaiters(final String destination) {
+        return GATES.containsKey(destination);
+    }
+
+    private <E extends Exception> boolean await(final CapacityCheck<E> check, final long timeout, final long maxBackoff) throws E, InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long backoff = Math.min(MIN_BACKOFF, maxBackoff);
+
+        while (true) {
+            // Read before checking, so a signal arriving during the check is not missed...
+            final long lastSignalCount = signalCount;
+            if (check.hasCapacity()) {
+                return true;
+            }
+
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+
+            lock.lockInterruptibly();
+            try {
+                long nanos = Math.min(TimeUnit.MILLISECONDS.toNanos(backoff), remaining);
+                while (signalCount == lastSignalCount && nanos > 0) {
+                    nanos = signalled.awaitNanos(nanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            backoff = (signalCount != lastSignalCount ? MIN_BACKOFF : Math.min(backoff * 2, maxBackoff));
+        }
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            signalCount++;
+            signalled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Destination capacity check.
+     *
+     * @param <E> The exception type thrown by the check.
+     */
+    @FunctionalInterface
+    public interface CapacityCheck<E extends Exception> {
+
+        /**
+         * Check if the destination is below its High Water Mark.
+         *
+         * @return True if the destination can take more messages.
+         * @throws E Error checking capacity.
+         */
+        boolean hasCapacity() throws E;
+    }
+}
@@ -0,0 +1,136 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing;
+
+import org.smooks.api.ExecutionContext;
+import org.smooks.api.TypedKey;
+import org.smooks.api.bean.context.BeanContext;
+import org.smooks.api.bean.lifecycle.BeanContextLifecycleEvent;
+import org.smooks.api.bean.lifecycle.BeanContextLifecycleObserver;
+import org.smooks.api.bean.lifecycle.BeanLifecycle;
+import org.smooks.engine.resource.visitor.dom.DOMModel;
+import org.smooks.support.FreeMarkerUtils;
+import org.w3c.dom.Element;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per execution cache of the {@link FreeMarkerUtils#getMergedModel(ExecutionContext) merged FreeMarker model}
+ * used by the routing resources to apply their templates (file names, correlation IDs...).
+ * <p/>
+ * Merging the bean context with the {@link DOMModel} models copies the whole bean map. The cached model
+ * is reused until a bean is added to, changed in, or removed from the bean context, or the DOM models
+ * change, so a routed fragment builds the model at most once however many templates it applies.
+ * <p/>
+ * The cached model must be treated as read-only.
+ */
+public final class MergedModelCache {
+
+    private static final TypedKey<CachedModel> CACHED_MODEL_TYPED_KEY = TypedKey.of();
+
+    /**
+     * Private constructor.
+     */
+    private MergedModelCache() {
+    }
+
+    /**
+     * Get the merged model for the current state of the execution.
+     *
+     * @param executionContext The execution context.
+     * @return The merged model.
+     */
+    public static Map<String, Object> getMergedModel(final ExecutionContext executionContext) {
+        final BeanContext beanContext = executionContext.getBeanContext();
+        CachedModel cachedModel = executionContext.get(CACHED_MODEL_TYPED_KEY);
+
+        if (cachedModel == null || cachedModel.beanContext != beanContext) {
+            cachedModel = new CachedModel(beanContext);
+            beanContext.addObserver(cachedModel);
+            executionContext.put(CACHED_MODEL_TYPED_KEY, cachedModel);
+        }
+
+        final Map<String, Element> domModels = DOMModel.getModel(executionContext).getModels();
+        if (cachedModel.model == null || cachedModel.isStale(domModels)) {
+            cachedModel.model = FreeMarkerUtils.getMergedModel(executionContext);
+            cachedModel.domModels = (domModels.isEmpty() ? null : new HashMap<>(domModels));
+        }
+
+        return cachedModel.model;
+    }
+
+    private static class CachedModel implements BeanContextLifecycleObserver {
+
+        private final BeanContext beanContext;
+        private Map<String, Object> model;
+        private Map<String, Element> domModels;
+
+        private CachedModel(final BeanContext beanContext) {
+            this.beanContext = beanContext;
+        }
+
+        @Override
+        public void onBeanLifecycleEvent(final BeanContextLifecycleEvent event) {
+            final BeanLifecycle lifecycle = event.getLifecycle();
+            if (lifecycle == BeanLifecycle.ADD || lifecycle == BeanLifecycle.CHANGE || lifecycle == BeanLifecycle.REMOVE) {
+                model = null;
+            }
+        }
+
+        private boolean isStale(final Map<String, Element> currentDomModels) {
+            if (domModels == null) {
+                return !currentDomModels.isEmpty();
+            }
+            if (domModels.size() != currentDomModels.size()) {
+                return true;
+            }
+            for (Map.Entry<String, Element> domModel : domModels.entrySet()) {
+                if (currentDomModels.get(domModel.getKey()) != domModel.getValue()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
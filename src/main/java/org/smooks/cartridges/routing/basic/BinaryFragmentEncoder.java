@@ -0,0 +1,287 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link FragmentEncoder} for the {@link FragmentSerializer.Format#BINARY BINARY} format read by
+ * {@link BinaryFragmentReader}.
+ * <p/>
+ * Events are encoded into an internal buffer, which is written to the stream when it fills up and at the end
+ * of every fragment. Names are written once per dictionary and referenced by number afterwards. A new dictionary
+ * is started whenever the encoder is pointed at a different stream, or on {@link #newDictionary()}. Not thread safe.
+ */
+final class BinaryFragmentEncoder implements FragmentEncoder {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int count;
+    private OutputStream out;
+    private boolean dictionaryPending;
+
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Point the encoder at a stream. A new dictionary is started if the stream is not the current one.
+     *
+     * @param out The stream.
+     */
+    void setOutputStream(final OutputStream out) {
+        if (out != this.out) {
+            this.out = out;
+            newDictionary();
+        }
+    }
+
+    /**
+     * Start a new dictionary with the next fragment, so it can be read on its own.
+     */
+    void newDictionary() {
+        dictionary.clear();
+        dictionaryPending = true;
+    }
+
+    @Override
+    public void startFragment() throws IOException {
+        if (dictionaryPending) {
+            write(BinaryFragmentReader.DICTIONARY);
+            write(BinaryFragmentReader.MAGIC[0]);
+            write(BinaryFragmentReader.MAGIC[1]);
+            write(BinaryFragmentReader.VERSION);
+            dictionaryPending = false;
+        }
+        write(BinaryFragmentReader.START_FRAGMENT);
+    }
+
+    @Override
+    public void writeStartElement(final Element element, final FragmentXmlWriter.NamespaceDeclarations namespaceDeclarations, final Set<String> excludedAttributes) throws IOException {
+        final NamedNodeMap attributes = element.getAttributes();
+        final int attributeCount = attributes.getLength();
+        int writtenCount = attributeCount;
+
+        if (excludedAttributes != null) {
+            for (int i = 0; i < attributeCount; i++) {
+                if (excludedAttributes.contains(((Attr) attributes.item(i)).getName())) {
+                    writtenCount--;
+                }
+            }
+        }
+        if (namespaceDeclarations != null) {
+            for (String declarationName : namespaceDeclarations.getDeclarations().keySet()) {
+                if (!element.hasAttribute(declarationName)) {
+                    writtenCount++;
+                }
+            }
+        }
+
+        write(BinaryFragmentReader.START_ELEMENT);
+        writeName(element.getTagName());
+        writeName(element.getNamespaceURI());
+        writeVarint(writtenCount);
+        for (int i = 0; i < attributeCount; i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            if (excludedAttributes == null || !excludedAttributes.contains(attribute.getName())) {
+                writeName(attribute.getName());
+                writeName(attribute.getNamespaceURI());
+                writeString(attribute.getValue());
+            }
+        }
+        if (namespaceDeclarations != null) {
+            for (Map.Entry<String, String> declaration : namespaceDeclarations.getDeclarations().entrySet()) {
+                if (!element.hasAttribute(declaration.getKey())) {
+                    writeName(declaration.getKey());
+                    writeName(XMLConstants.XMLNS_ATTRIBUTE_NS_URI);
+                    writeString(declaration.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void writeEndElement(final Element element) throws IOException {
+        write(BinaryFragmentReader.END_ELEMENT);
+    }
+
+    @Override
+    public void writeCharacterData(final Node characterData) throws IOException {
+        switch (characterData.getNodeType()) {
+            case Node.TEXT_NODE:
+                write(BinaryFragmentReader.TEXT);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                write(BinaryFragmentReader.CDATA);
+                break;
+            case Node.COMMENT_NODE:
+                write(BinaryFragmentReader.COMMENT);
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                write(BinaryFragmentReader.ENTITY_REFERENCE);
+                writeName(characterData.getNodeName());
+                return;
+            default:
+                throw new IOException("Unsupported character data node type " + characterData.getNodeType() + ". Node: [" + characterData + "]");
+        }
+        writeString(((CharacterData) characterData).getData());
+    }
+
+    @Override
+    public void endFragment() throws IOException {
+        write(BinaryFragmentReader.END_FRAGMENT);
+        drain();
+        out.flush();
+        if (buf.length > BUFFER_SIZE) {
+            // Grown for a large string...
+            buf = new byte[BUFFER_SIZE];
+        }
+    }
+
+    private void writeName(final String name) throws IOException {
+        if (name == null) {
+            writeVarint(BinaryFragmentReader.NO_NAME);
+            return;
+        }
+
+        final Integer index = dictionary.get(name);
+        if (index != null) {
+            writeVarint(index + 2);
+        } else {
+            dictionary.put(name, dictionary.size());
+            writeVarint(BinaryFragmentReader.NEW_NAME);
+            writeString(name);
+        }
+    }
+
+    private void writeString(final String string) throws IOException {
+        final int length = string.length();
+        int utf8Length = length;
+
+        for (int i = 0; i < length; i++) {
+            final char c = string.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                utf8Length += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                utf8Length += 2;
+                i++;
+            } else {
+                utf8Length += 2;
+            }
+        }
+        writeVarint(utf8Length);
+        ensureCapacity(utf8Length);
+
+        // Encode as UTF-8...
+        for (int i = 0; i < length; i++) {
+            final char c = string.charAt(i);
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired, replaced with U+FFFD...
+                buf[count++] = (byte) 0xEF;
+                buf[count++] = (byte) 0xBF;
+                buf[count++] = (byte) 0xBD;
+            } else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void writeVarint(int value) throws IOException {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buf[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[count++] = (byte) value;
+    }
+
+    private void write(final int b) throws IOException {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    private void ensureCapacity(final int length) throws IOException {
+        if (count + length > buf.length) {
+            drain();
+            if (length > buf.length) {
+                buf = Arrays.copyOf(buf, length);
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the fragments a {@link FragmentSerializer} serializes in the {@link FragmentSerializer.Format#BINARY BINARY}
+ * format, without parsing XML text.
+ * <p/>
+ * The reader is a pull parser: {@link #next()} returns the next event, whose details are then available from the
+ * getters e.g.
+ * <pre>
+ * BinaryFragmentReader reader = new BinaryFragmentReader(inputStream);
+ * int event;
+ * while ((event = reader.next()) != BinaryFragmentReader.END_OF_STREAM) {
+ *     if (event == BinaryFragmentReader.START_ELEMENT) {
+ *         String name = reader.getName();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * {@link #readFragment(Document)} reads a whole fragment into DOM nodes. A stream can hold any number of
+ * fragments, as written to a resource or bound as <code>byte[]</code> beans.
+ * <p/>
+ * A stream is a sequence of one byte event tokens, each followed by its data. Numbers are unsigned varints
+ * (7 bits per byte, least significant group first). Strings are a varint byte length followed by UTF-8 bytes.
+ * Element, attribute and namespace names are written through a dictionary: a name reference is a varint that is
+ * 0 for no name (e.g. no namespace), 1 for a new name (followed by the name string, which is added to the
+ * dictionary) or <i>n</i> &gt; 1 for dictionary entry <i>n</i> - 2.
+ * <ul>
+ * <li>{@link #DICTIONARY} "<code>SBF</code>" version: Starts a new (empty) dictionary. Every stream starts with one.
+ * <li>{@link #START_FRAGMENT}, {@link #END_FRAGMENT}.
+ * <li>{@link #START_ELEMENT} name namespace attributeCount (name namespace value-string)*.
+ * <li>{@link #END_ELEMENT}.
+ * <li>{@link #TEXT}, {@link #CDATA}, {@link #COMMENT} string.
+ * <li>{@link #ENTITY_REFERENCE} name.
+ * </ul>
+ * Not thread safe.
+ */
+public class BinaryFragmentReader implements Closeable {
+
+    /**
+     * End of the stream.
+     */
+    public static final int END_OF_STREAM = -1;
+    /**
+     * Start of a fragment.
+     */
+    public static final int START_FRAGMENT = 1;
+    /**
+     * End of a fragment.
+     */
+    public static final int END_FRAGMENT = 2;
+    /**
+     * Start of an element. See {@link #getName()}, {@link #getNamespaceURI()} and the attribute getters.
+     */
+    public static final int START_ELEMENT = 3;
+    /**
+     * End of an element.
+     */
+    public static final int END_ELEMENT = 4;
+    /**
+     * Text. See {@link #getText()}.
+     */
+    public static final int TEXT = 5;
+    /**
+     * CDATA section. See {@link #getText()}.
+     */
+    public static final int CDATA = 6;
+    /**
+     * Comment. See {@link #getText()}.
+     */
+    public static final int COMMENT = 7;
+    /**
+     * Entity reference. See {@link #getName()}.
+     */
+    public static final int ENTITY_REFERENCE = 8;
+
+    static final int DICTIONARY = 'S';
+    static final byte[] MAGIC = {'B', 'F'};
+    static final int VERSION = 1;
+    static final int NO_NAME = 0;
+    static final int NEW_NAME = 1;
+
+    private final InputStream in;
+    private final List<String> dictionary = new ArrayList<>();
+    private byte[] bytes = new byte[256];
+    private String name;
+    private String namespaceURI;
+    private String text;
+    private int attributeCount;
+    private String[] attributes = new String[24];
+
+    /**
+     * Public constructor.
+     *
+     * @param in The stream to read. It is read one byte at a time, so should be buffered.
+     */
+    public BinaryFragmentReader(final InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next event.
+     *
+     * @return The event e.g. {@link #START_ELEMENT}, or {@link #END_OF_STREAM}.
+     * @throws IOException Error reading the stream, or the stream is not valid.
+     */
+    public int next() throws IOException {
+        int token = in.read();
+
+        while (token == DICTIONARY) {
+            readDictionary();
+            token = in.read();
+        }
+
+        switch (token) {
+            case -1:
+                return END_OF_STREAM;
+            case START_FRAGMENT:
+            case END_FRAGMENT:
+            case END_ELEMENT:
+                return token;
+            case START_ELEMENT:
+                name = readName();
+                namespaceURI = readName();
+                attributeCount = readVarint();
+                if (attributeCount * 3 > attributes.length) {
+                    attributes = new String[attributeCount * 3];
+                }
+                for (int i = 0; i < attributeCount * 3; i += 3) {
+                    attributes[i] = readName();
+                    attributes[i + 1] = readName();
+                    attributes[i + 2] = readString();
+                }
+                return token;
+            case TEXT:
+            case CDATA:
+            case COMMENT:
+                text = readString();
+                return token;
+            case ENTITY_REFERENCE:
+                name = readName();
+                return token;
+            default:
+                throw new StreamCorruptedException("Invalid binary fragment token " + token + ".");
+        }
+    }
+
+    /**
+     * Read the next fragment into DOM nodes.
+     * <p/>
+     * Any events before the next {@link #START_FRAGMENT} are skipped.
+     *
+     * @param document The document the nodes are created by.
+     * @return The fragment, or null at the end of the stream.
+     * @throws IOException Error reading the stream, or the stream is not valid.
+     */
+    public DocumentFragment readFragment(final Document document) throws IOException {
+        int event;
+
+        do {
+            event = next();
+            if (event == END_OF_STREAM) {
+                return null;
+            }
+        } while (event != START_FRAGMENT);
+
+        final DocumentFragment fragment = document.createDocumentFragment();
+        Node parent = fragment;
+        while ((event = next()) != END_FRAGMENT) {
+            switch (event) {
+                case START_ELEMENT:
+                    final Element element = document.createElementNS(namespaceURI, name);
+                    for (int i = 0; i < attributeCount; i++) {
+                        element.setAttributeNS(getAttributeNamespaceURI(i), getAttributeName(i), getAttributeValue(i));
+                    }
+                    parent.appendChild(element);
+                    parent = element;
+                    break;
+                case END_ELEMENT:
+                    parent = parent.getParentNode();
+                    break;
+                case TEXT:
+                    parent.appendChild(document.createTextNode(text));
+                    break;
+                case CDATA:
+                    parent.appendChild(document.createCDATASection(text));
+                    break;
+                case COMMENT:
+                    parent.appendChild(document.createComment(text));
+                    break;
+                case ENTITY_REFERENCE:
+                    parent.appendChild(document.createEntityReference(name));
+                    break;
+                case END_OF_STREAM:
+                    throw new EOFException("Unexpected end of stream inside a binary fragment.");
+                default:
+                    throw new StreamCorruptedException("Unexpected binary fragment event " + event + " inside a fragment.");
+            }
+        }
+
+        return fragment;
+    }
+
+    /**
+     * Get the qualified name of the current element, or the name of the current entity reference.
+     *
+     * @return The name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the namespace URI of the current element.
+     *
+     * @return The namespace URI, or null if the element is not in a namespace.
+     */
+    public String getNamespaceURI() {
+        return namespaceURI;
+    }
+
+    /**
+     * Get the number of attributes (including namespace declarations) of the current element.
+     *
+     * @return The attribute count.
+     */
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    /**
+     * Get the qualified name of an attribute of the current element.
+     *
+     * @param index The attribute index.
+     * @return The attribute name.
+     */
+    public String getAttributeName(final int index) {
+        return attributes[checkAttributeIndex(index) * 3];
+    }
+
+    /**
+     * Get the namespace URI of an attribute of the current element.
+     *
+     * @param index The attribute index.
+     * @return The namespace URI, or null if the attribute is not in a namespace.
+     */
+    public String getAttributeNamespaceURI(final int index) {
+        return attributes[checkAttributeIndex(index) * 3 + 1];
+    }
+
+    /**
+     * Get the value of an attribute of the current element.
+     *
+     * @param index The attribute index.
+     * @return The attribute value.
+     */
+    public String getAttributeValue(final int index) {
+        return attributes[checkAttributeIndex(index) * 3 + 2];
+    }
+
+    /**
+     * Get the current text, CDATA section or comment.
+     *
+     * @return The text.
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int checkAttributeIndex(final int index) {
+        if (index < 0 || index >= attributeCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", attribute count " + attributeCount);
+        }
+        return index;
+    }
+
+    private void readDictionary() throws IOException {
+        final byte[] magic = new byte[MAGIC.length];
+        readFully(magic, magic.length);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new StreamCorruptedException("Not a binary fragment stream.");
+        }
+        final int version = in.read();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported binary fragment stream version " + version + ".");
+        }
+        dictionary.clear();
+    }
+
+    private String readName() throws IOException {
+        final int reference = readVarint();
+
+        if (reference == NO_NAME) {
+            return null;
+        } else if (reference == NEW_NAME) {
+            final String newName = readString();
+            dictionary.add(newName);
+            return newName;
+        } else if (reference - 2 < dictionary.size()) {
+            return dictionary.get(reference - 2);
+        }
+        throw new StreamCorruptedException("Invalid binary fragment name reference " + reference + ". Dictionary size " + dictionary.size() + ".");
+    }
+
+    private String readString() throws IOException {
+        final int length = readVarint();
+
+        if (length > bytes.length) {
+            bytes = new byte[Math.max(length, bytes.length << 1)];
+        }
+        readFully(bytes, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Unexpected end of stream inside a binary fragment.");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Invalid binary fragment varint.");
+    }
+
+    private void readFully(final byte[] buffer, final int length) throws IOException {
+        int offset = 0;
+
+        while (offset < length) {
+            final int read = in.read(buffer, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of stream inside a binary fragment.");
+            }
+            offset += read;
+        }
+    }
+}
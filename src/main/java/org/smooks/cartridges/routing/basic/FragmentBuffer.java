@@ -0,0 +1,284 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Buffer a {@link FragmentSerializer} serializes a fragment into, for binding.
+ * <p/>
+ * The fragment is buffered on the heap until it grows past the spill threshold. It is then moved to a
+ * temporary file and the rest of the fragment is written straight to the file, so the heap used does not
+ * depend on the size of the fragment. In both cases the bound fragment is trimmed as {@link String#trim()}
+ * would: leading whitespace is dropped when spilling, and trailing whitespace is held on the heap until
+ * more content follows it.
+ * <p/>
+ * A buffer can be {@link #reset(int) reset} and reused for the next fragment once the current one has been
+ * bound. Its array is kept unless it was handed out in a {@link FragmentCharSequence} view, or has grown far
+ * past the expected fragment size. Not thread safe.
+ */
+final class FragmentBuffer extends Writer {
+
+    static final int MIN_CAPACITY = 256;
+
+    private final int spillThreshold;
+    private final Path spillDirectory;
+    private final String spillFileSuffix;
+    private final List<SpilledFragment> spilledFragments;
+    private char[] buf;
+    private int count;
+    private boolean bufShared;
+    private SpilledFragment spilledFragment;
+    private Writer spillWriter;
+
+    /**
+     * Constructor.
+     *
+     * @param initialCapacity  The initial capacity, in chars.
+     * @param spillThreshold   The number of chars above which the fragment is spilled, or -1 to never spill.
+     * @param spillDirectory   The directory spill files are created in.
+     * @param spillFileSuffix  The suffix of the spill file names e.g. ".xml".
+     * @param spilledFragments Every spill file created is added to this list, for cleanup.
+     */
+    FragmentBuffer(final int initialCapacity, final int spillThreshold, final Path spillDirectory, final String spillFileSuffix, final List<SpilledFragment> spilledFragments) {
+        this.buf = new char[Math.max(MIN_CAPACITY, initialCapacity)];
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+        this.spillFileSuffix = spillFileSuffix;
+        this.spilledFragments = spilledFragments;
+    }
+
+    /**
+     * Empty the buffer, for the next fragment.
+     *
+     * @param expectedCapacity The capacity, in chars, the next fragment is expected to need.
+     */
+    void reset(final int expectedCapacity) {
+        final int capacity = Math.max(MIN_CAPACITY, expectedCapacity);
+
+        if (bufShared || buf.length < capacity || buf.length / 4 > capacity) {
+            buf = new char[capacity];
+            bufShared = false;
+        }
+        count = 0;
+        spilledFragment = null;
+        spillWriter = null;
+    }
+
+    /**
+     * Get the length of the buffered fragment.
+     *
+     * @return The number of chars buffered, or -1 if the fragment is spilled.
+     */
+    int length() {
+        return (spilledFragment != null ? -1 : count);
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+        if (spillWriter != null && c > ' ') {
+            writePending();
+            spillWriter.write(c);
+        } else {
+            ensureCapacity(count + 1);
+            buf[count++] = (char) c;
+            spillIfDue();
+        }
+    }
+
+    @Override
+    public void write(final char[] chars, final int off, final int len) throws IOException {
+        if (spillWriter != null) {
+            int end = off + len;
+            while (end > off && chars[end - 1] <= ' ') {
+                end--;
+            }
+            if (end > off) {
+                writePending();
+                spillWriter.write(chars, off, end - off);
+            }
+            append(chars, end, off + len - end);
+        } else {
+            append(chars, off, len);
+            spillIfDue();
+        }
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+        if (spillWriter != null) {
+            int end = off + len;
+            while (end > off && str.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            if (end > off) {
+                writePending();
+                spillWriter.write(str, off, end - off);
+            }
+            append(str, end, off + len - end);
+        } else {
+            append(str, off, len);
+            spillIfDue();
+        }
+    }
+
+    /**
+     * Get the serialized fragment. Nothing can be written to the buffer afterwards, until it is reset.
+     *
+     * @param bindCharSequence True if an unspilled fragment is to be returned as a {@link FragmentCharSequence},
+     *                         otherwise false.
+     * @return The {@link SpilledFragment}, {@link FragmentCharSequence} or String fragment.
+     * @throws IOException Error completing the spill file.
+     */
+    Object toFragment(final boolean bindCharSequence) throws IOException {
+        if (spilledFragment != null) {
+            // Trailing whitespace is trimmed...
+            count = 0;
+            close();
+            return spilledFragment;
+        }
+
+        FragmentCharSequence fragment = FragmentCharSequence.trimmed(buf, count);
+        if (bindCharSequence) {
+            bufShared = true;
+            return fragment;
+        }
+        return fragment.toString();
+    }
+
+    /**
+     * Discard the fragment, deleting its spill file if any.
+     */
+    void discard() {
+        try {
+            close();
+        } catch (IOException e) {
+            // Deleting the file anyway...
+        }
+        if (spilledFragment != null) {
+            spilledFragment.delete();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (spillWriter != null) {
+            spillWriter.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spillWriter != null) {
+            try {
+                writePending();
+            } finally {
+                spillWriter.close();
+                spillWriter = null;
+            }
+        }
+    }
+
+    private void spillIfDue() throws IOException {
+        if (spillThreshold < 0 || count <= spillThreshold) {
+            return;
+        }
+
+        int start = 0;
+        int end = count;
+        while (start < end && buf[start] <= ' ') {
+            start++;
+        }
+        if (start == end) {
+            // Nothing but leading whitespace so far, which is trimmed anyway...
+            count = 0;
+            return;
+        }
+        while (buf[end - 1] <= ' ') {
+            end--;
+        }
+
+        Path path = Files.createTempFile(spillDirectory, "smooks-fragment-", spillFileSuffix);
+        spilledFragment = new SpilledFragment(path);
+        spilledFragments.add(spilledFragment);
+        spillWriter = new OutputStreamWriter(Files.newOutputStream(path), spilledFragment.getCharset());
+        spillWriter.write(buf, start, end - start);
+
+        // Keep the trailing whitespace, and release the rest of the buffer...
+        char[] pending = new char[Math.max(MIN_CAPACITY, count - end)];
+        System.arraycopy(buf, end, pending, 0, count - end);
+        buf = pending;
+        count -= end;
+    }
+
+    private void writePending() throws IOException {
+        if (count > 0) {
+            spillWriter.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    private void append(final char[] chars, final int off, final int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(chars, off, buf, count, len);
+        count += len;
+    }
+
+    private void append(final String str, final int off, final int len) {
+        ensureCapacity(count + len);
+        str.getChars(off, off + len, buf, count);
+        count += len;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, capacity));
+        }
+    }
+}
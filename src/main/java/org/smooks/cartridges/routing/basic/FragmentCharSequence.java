@@ -0,0 +1,144 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Read-only view of a serialized fragment, over the serializer's character buffer.
+ * <p/>
+ * Bound by {@link FragmentSerializer} in place of a String when <code>bindCharSequence</code> is set.
+ * Consumers that can write characters from a {@link CharBuffer} (e.g. the
+ * {@link org.smooks.cartridges.routing.io.OutputStreamRouter}) use {@link #asCharBuffer()} and never
+ * materialize the fragment as a String. {@link #toString()} materializes it once and caches it. The
+ * view serializes as a String.
+ */
+public final class FragmentCharSequence implements CharSequence, Serializable {
+
+    private final char[] chars;
+    private final int offset;
+    private final int length;
+    private transient String string;
+
+    /**
+     * Create a view of a buffer, trimmed as {@link String#trim()} would.
+     *
+     * @param chars The buffer. Must not be modified afterwards.
+     * @param count The number of characters in the buffer.
+     * @return The trimmed view.
+     */
+    static FragmentCharSequence trimmed(final char[] chars, final int count) {
+        int start = 0;
+        int end = count;
+
+        while (start < end && chars[start] <= ' ') {
+            start++;
+        }
+        while (start < end && chars[end - 1] <= ' ') {
+            end--;
+        }
+
+        return new FragmentCharSequence(chars, start, end - start);
+    }
+
+    private FragmentCharSequence(final char[] chars, final int offset, final int length) {
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return chars[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        return new FragmentCharSequence(chars, offset + start, end - start);
+    }
+
+    /**
+     * Get a read-only {@link CharBuffer} over the fragment characters, without copying them.
+     *
+     * @return The buffer.
+     */
+    public CharBuffer asCharBuffer() {
+        return CharBuffer.wrap(chars, offset, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the fragment characters to a writer, without copying them.
+     *
+     * @param writer The writer.
+     * @throws IOException Error writing.
+     */
+    public void writeTo(final Writer writer) throws IOException {
+        writer.write(chars, offset, length);
+    }
+
+    @Override
+    public String toString() {
+        if (string == null) {
+            string = new String(chars, offset, length);
+        }
+        return string;
+    }
+
+    private Object writeReplace() {
+        return toString();
+    }
+}
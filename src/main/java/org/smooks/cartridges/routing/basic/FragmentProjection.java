@@ -0,0 +1,269 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import org.smooks.api.SmooksConfigException;
+import org.w3c.dom.Element;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Selects the parts of a fragment a {@link FragmentSerializer} writes.
+ * <p/>
+ * Element paths are relative to the fragment root e.g. "<code>customer/address</code>" selects the
+ * <code>address</code> children of the root's <code>customer</code> children. Steps are matched against
+ * element local names, and "<code>*</code>" matches any element. An included element is written with its
+ * whole subtree, along with the start and end tags (but not the text) of the elements on the way to it.
+ * An excluded element is not written at all, even inside an included one. Excluded attributes are matched
+ * against attribute names, as written, on every element.
+ * <p/>
+ * Paths are matched incrementally, as elements are entered, against the paths that can still match, so
+ * the cost per element does not depend on its depth.
+ */
+final class FragmentProjection {
+
+    private static final int MAX_PATHS = Long.SIZE;
+
+    private final String[][] includePaths;
+    private final String[][] excludePaths;
+    private final Set<String> excludedAttributes;
+
+    private FragmentProjection(final String[][] includePaths, final String[][] excludePaths, final Set<String> excludedAttributes) {
+        this.includePaths = includePaths;
+        this.excludePaths = excludePaths;
+        this.excludedAttributes = excludedAttributes;
+    }
+
+    /**
+     * Create a projection from comma separated lists.
+     *
+     * @param includeElements   The paths of the elements to include, or null to include all elements.
+     * @param excludeElements   The paths of the elements to exclude, or null.
+     * @param excludeAttributes The names of the attributes to exclude, or null.
+     * @return The projection, or null if nothing is to be left out.
+     * @throws SmooksConfigException Invalid path list.
+     */
+    static FragmentProjection parse(final String includeElements, final String excludeElements, final String excludeAttributes) throws SmooksConfigException {
+        final String[][] includePaths = parsePaths("includeElements", includeElements);
+        final String[][] excludePaths = parsePaths("excludeElements", excludeElements);
+        final Set<String> excludedAttributes = new HashSet<>(Arrays.asList(split(excludeAttributes)));
+
+        if (includePaths.length == 0 && excludePaths.length == 0 && excludedAttributes.isEmpty()) {
+            return null;
+        }
+        return new FragmentProjection(includePaths, excludePaths, (excludedAttributes.isEmpty() ? null : Collections.unmodifiableSet(excludedAttributes)));
+    }
+
+    /**
+     * Get the names of the attributes not to write.
+     *
+     * @return The attribute names, or null if all attributes are written.
+     */
+    Set<String> getExcludedAttributes() {
+        return excludedAttributes;
+    }
+
+    /**
+     * Create a cursor for tracking a serializer's position in the fragment.
+     *
+     * @return The cursor.
+     */
+    Cursor newCursor() {
+        return new Cursor();
+    }
+
+    private static String[][] parsePaths(final String name, final String paths) throws SmooksConfigException {
+        final String[] pathList = split(paths);
+        final String[][] parsedPaths = new String[pathList.length][];
+
+        if (pathList.length > MAX_PATHS) {
+            throw new SmooksConfigException("Invalid '" + name + "' list. No more than " + MAX_PATHS + " paths are supported.");
+        }
+        for (int i = 0; i < pathList.length; i++) {
+            parsedPaths[i] = pathList[i].split("/", -1);
+            for (String step : parsedPaths[i]) {
+                if (step.isEmpty()) {
+                    throw new SmooksConfigException("Invalid '" + name + "' path '" + pathList[i] + "'. Paths are relative to the fragment root and cannot have empty steps.");
+                }
+            }
+        }
+        return parsedPaths;
+    }
+
+    private static String[] split(final String list) {
+        if (list == null || list.trim().isEmpty()) {
+            return new String[0];
+        }
+
+        final String[] items = list.trim().split("\\s*,\\s*");
+        for (String item : items) {
+            if (item.isEmpty()) {
+                throw new SmooksConfigException("Invalid list '" + list + "'. Empty list item.");
+            }
+        }
+        return items;
+    }
+
+    private static long allPaths(final String[][] paths) {
+        return (paths.length == MAX_PATHS ? -1L : (1L << paths.length) - 1);
+    }
+
+    /**
+     * Position of a serializer in a fragment: for each open element, the include and exclude paths still
+     * matching it, and whether it is written with its whole subtree. Not thread safe.
+     */
+    final class Cursor {
+
+        private long[] includeMasks = new long[8];
+        private long[] excludeMasks = new long[8];
+        private boolean[] included = new boolean[8];
+        private int level = -1;
+        private int skippedLevels;
+
+        /**
+         * Enter an element. The first element entered is the fragment root, which is always written.
+         *
+         * @param element The element.
+         * @return True if the element is to be written, otherwise false.
+         */
+        boolean enter(final Element element) {
+            if (skippedLevels > 0) {
+                skippedLevels++;
+                return false;
+            }
+            if (level == -1) {
+                push(allPaths(includePaths), allPaths(excludePaths), includePaths.length == 0);
+                return true;
+            }
+
+            final int step = level;
+            final String name = (element.getLocalName() != null ? element.getLocalName() : element.getTagName());
+
+            long excludeMask = 0;
+            for (long mask = excludeMasks[level]; mask != 0; mask &= mask - 1) {
+                final int path = Long.numberOfTrailingZeros(mask);
+                if (matches(excludePaths[path][step], name)) {
+                    if (excludePaths[path].length == step + 1) {
+                        skippedLevels = 1;
+                        return false;
+                    }
+                    excludeMask |= 1L << path;
+                }
+            }
+
+            boolean fullyIncluded = included[level];
+            long includeMask = 0;
+            if (!fullyIncluded) {
+                for (long mask = includeMasks[level]; mask != 0; mask &= mask - 1) {
+                    final int path = Long.numberOfTrailingZeros(mask);
+                    if (matches(includePaths[path][step], name)) {
+                        if (includePaths[path].length == step + 1) {
+                            fullyIncluded = true;
+                            includeMask = 0;
+                            break;
+                        }
+                        includeMask |= 1L << path;
+                    }
+                }
+                if (!fullyIncluded && includeMask == 0) {
+                    // Not on the way to an included element...
+                    skippedLevels = 1;
+                    return false;
+                }
+            }
+
+            push(includeMask, excludeMask, fullyIncluded);
+            return true;
+        }
+
+        /**
+         * Exit the current element.
+         *
+         * @return True if the element was written, otherwise false.
+         */
+        boolean exit() {
+            if (skippedLevels > 0) {
+                skippedLevels--;
+                return false;
+            }
+            level--;
+            return true;
+        }
+
+        /**
+         * Is the text of the current element to be written.
+         *
+         * @return True if the text is to be written, otherwise false.
+         */
+        boolean isTextIncluded() {
+            return skippedLevels == 0 && level >= 0 && included[level];
+        }
+
+        /**
+         * Reset the cursor, for the next fragment.
+         */
+        void reset() {
+            level = -1;
+            skippedLevels = 0;
+        }
+
+        private boolean matches(final String step, final String name) {
+            return step.equals("*") || step.equals(name);
+        }
+
+        private void push(final long includeMask, final long excludeMask, final boolean fullyIncluded) {
+            level++;
+            if (level == includeMasks.length) {
+                includeMasks = Arrays.copyOf(includeMasks, level << 1);
+                excludeMasks = Arrays.copyOf(excludeMasks, level << 1);
+                included = Arrays.copyOf(included, level << 1);
+            }
+            includeMasks[level] = includeMask;
+            excludeMasks[level] = excludeMask;
+            included[level] = fullyIncluded;
+        }
+    }
+}
@@ -43,6 +43,7 @@
 package org.smooks.cartridges.routing.basic;
 
 import org.smooks.api.ExecutionContext;
+import org.smooks.api.SmooksConfigException;
 import org.smooks.api.SmooksException;
 import org.smooks.api.TypedKey;
 import org.smooks.api.bean.context.BeanContext;
@@ -52,26 +53,42 @@ import org.smooks.api.delivery.event.ExecutionEvent;
 import org.smooks.api.delivery.event.ExecutionEventListener;
 import org.smooks.api.delivery.fragment.Fragment;
 import org.smooks.api.delivery.ordering.Producer;
+import org.smooks.api.lifecycle.PostExecutionLifecycle;
 import org.smooks.api.lifecycle.PostFragmentLifecycle;
 import org.smooks.api.resource.visitor.sax.ng.AfterVisitor;
 import org.smooks.api.resource.visitor.sax.ng.BeforeVisitor;
 import org.smooks.engine.bean.lifecycle.DefaultBeanContextLifecycleEvent;
-import org.smooks.engine.delivery.dom.serialize.DefaultDOMSerializerVisitor;
 import org.smooks.engine.delivery.event.EndFragmentExecutionEvent;
 import org.smooks.engine.delivery.event.StartFragmentExecutionEvent;
 import org.smooks.engine.delivery.fragment.NodeFragment;
 import org.smooks.engine.delivery.sax.ng.CharDataFragmentExecutionEvent;
 import org.smooks.engine.xml.NamespaceManager;
+import org.smooks.io.AbstractOutputStreamResource;
+import org.smooks.io.ResourceOutputStream;
+import org.smooks.io.ResourceWriter;
 import org.smooks.namespace.NamespaceDeclarationStack;
 import org.w3c.dom.CharacterData;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import jakarta.annotation.PostConstruct;
 
 import javax.inject.Inject;
-import javax.xml.XMLConstants;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -79,16 +96,55 @@ import java.util.stream.Stream;
 
 /**
  * Basic message fragment serializer.
+ * <p/>
+ * By default, each serialized fragment is bound to the bean context as a String (<code>bindTo</code>), or
+ * as a {@link FragmentCharSequence} view over the serializer's buffer (<code>bindCharSequence</code>).
+ * Fragments larger than <code>spillThreshold</code> characters are spilled to a temporary file in
+ * <code>spillDirectory</code> as they are serialized, and bound as a {@link SpilledFragment} that reads the
+ * file lazily, so large fragments do not sit on the heap while they are bound.
+ * <p/>
+ * The serialized content can be narrowed with <code>includeElements</code>, <code>excludeElements</code> and
+ * <code>excludeAttributes</code>. Pruned elements and attributes are skipped as the fragment is filtered,
+ * so they are never written.
+ * In sink mode (<code>resourceName</code>), the fragment is instead streamed straight into the
+ * named {@link AbstractOutputStreamResource} as it is filtered, so fragments of any size are serialized
+ * in constant memory. Unlike the bound String, the streamed fragment is not trimmed. Subclasses can
+ * stream to some other {@link Writer} by overriding {@link #openSinkWriter(ExecutionContext)}.
+ * <p/>
+ * With the {@link Format#BINARY BINARY} <code>format</code>, fragments are encoded as compact binary events
+ * instead of XML text, for consumers that read them with a {@link BinaryFragmentReader} rather than an XML
+ * parser. Bound fragments are <code>byte[]</code>s that can each be read on their own. Fragments streamed to
+ * a resource share a name dictionary for the execution. Subclasses can stream binary fragments to some other
+ * {@link OutputStream} by overriding {@link #openSinkOutputStream(ExecutionContext)}.
+ * <p/>
+ * With the {@link Format#JSON JSON} <code>format</code>, fragments are written as JSON straight from the
+ * filter events, without an intermediate XML string. Attributes become members prefixed with
+ * <code>jsonAttributePrefix</code>, text sharing an element with attributes or child elements becomes a
+ * <code>jsonTextKey</code> member, and the elements listed in <code>jsonArrayElements</code> are written as arrays.
  *
  * @author <a href="mailto:tom.fennelly@jboss.com">tom.fennelly@jboss.com</a>
  */
-public class FragmentSerializer implements BeforeVisitor, AfterVisitor, Producer, PostFragmentLifecycle {
+public class FragmentSerializer implements BeforeVisitor, AfterVisitor, Producer, PostFragmentLifecycle, PostExecutionLifecycle {
 
-    private static final TypedKey<Map<String, FragmentSerializerVisitor>> FRAGMENT_SERIALIZER_TYPED_KEY = TypedKey.of();
+    private static final TypedKey<FragmentSerializerDispatcher> FRAGMENT_SERIALIZER_DISPATCHER_TYPED_KEY = TypedKey.of();
+    private static final TypedKey<List<SpilledFragment>> SPILLED_FRAGMENTS_TYPED_KEY = TypedKey.of();
     private String bindTo;
+    private String resourceName;
     private boolean omitXMLDeclaration;
     private boolean childContentOnly;
     private boolean retain;
+    private boolean bindCharSequence;
+    private int spillThreshold = -1;
+    private Path spillDirectory;
+    private Format format = Format.XML;
+    private String jsonAttributePrefix = "@";
+    private String jsonTextKey = "#text";
+    private Set<String> jsonArrayElements = Collections.emptySet();
+    private String includeElements;
+    private String excludeElements;
+    private String excludeAttributes;
+    private FragmentProjection projection;
+    private volatile int averageFragmentLength;
 
     /**
      * Set the bind-to beanId for the serialized fragment.
@@ -96,12 +152,34 @@ public class FragmentSerializer implements BeforeVisitor, AfterVisitor, Producer
      * @param bindTo The bind-to beanId for the serialized fragment.
      * @return this instance.
      */
-    @Inject
     public FragmentSerializer setBindTo(String bindTo) {
         this.bindTo = bindTo;
         return this;
     }
 
+    /**
+     * Set the bind-to beanId for the serialized fragment.
+     *
+     * @param bindTo The bind-to beanId for the serialized fragment. Not set in sink mode.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setBindTo(Optional<String> bindTo) {
+        return setBindTo(bindTo.orElse(null));
+    }
+
+    /**
+     * Set the name of the {@link AbstractOutputStreamResource} the serialized fragments are streamed to (sink mode).
+     *
+     * @param resourceName The resource name.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setResourceName(Optional<String> resourceName) {
+        this.resourceName = resourceName.orElse(null);
+        return this;
+    }
+
     /**
      * Omit the XML Declaration from the serialized fragments.
      *
@@ -143,44 +221,377 @@ public class FragmentSerializer implements BeforeVisitor, AfterVisitor, Producer
         return this;
     }
 
+    /**
+     * Bind the serialized fragment as a {@link FragmentCharSequence} view over the serializer's buffer,
+     * instead of a String.
+     * <p/>
+     * This variable is, by default, false.
+     *
+     * @param bindCharSequence True if the fragment is to be bound as a {@link FragmentCharSequence},
+     *                         otherwise false.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setBindCharSequence(Optional<Boolean> bindCharSequence) {
+        this.bindCharSequence = bindCharSequence.orElse(false);
+        return this;
+    }
+
+    /**
+     * Set the size, in characters, above which a serialized fragment is spilled to a temporary file and bound
+     * as a {@link SpilledFragment}.
+     * <p/>
+     * This variable is, by default, -1 (never spill).
+     *
+     * @param spillThreshold The spill threshold, or -1 to never spill.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setSpillThreshold(Optional<Integer> spillThreshold) {
+        this.spillThreshold = spillThreshold.orElse(-1);
+        return this;
+    }
+
+    /**
+     * Set the directory spilled fragments are written to.
+     * <p/>
+     * This variable is, by default, the <code>java.io.tmpdir</code> directory.
+     *
+     * @param spillDirectory The spill directory.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setSpillDirectory(Optional<String> spillDirectory) {
+        this.spillDirectory = spillDirectory.map(Paths::get).orElse(null);
+        return this;
+    }
+
+    /**
+     * Set the format the fragments are serialized in.
+     * <p/>
+     * This variable is, by default, {@link Format#XML}.
+     *
+     * @param format The format.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setFormat(Optional<Format> format) {
+        this.format = format.orElse(Format.XML);
+        return this;
+    }
+
+    /**
+     * Set the prefix of the member names attributes are written as, with the {@link Format#JSON JSON} format.
+     * <p/>
+     * This variable is, by default, "@".
+     *
+     * @param jsonAttributePrefix The attribute member name prefix.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setJsonAttributePrefix(Optional<String> jsonAttributePrefix) {
+        this.jsonAttributePrefix = jsonAttributePrefix.orElse("@");
+        return this;
+    }
+
+    /**
+     * Set the name of the member the text of elements with attributes or child elements is written as, with the
+     * {@link Format#JSON JSON} format. The text of other elements is written as a plain string.
+     * <p/>
+     * This variable is, by default, "#text".
+     *
+     * @param jsonTextKey The text member name.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setJsonTextKey(Optional<String> jsonTextKey) {
+        this.jsonTextKey = jsonTextKey.orElse("#text");
+        return this;
+    }
+
+    /**
+     * Set the elements always written as JSON arrays, with the {@link Format#JSON JSON} format, as a comma
+     * separated list of element local names. Consecutive siblings of the same name are written to one array.
+     * Since the fragment is written as it is filtered, repeated siblings not listed here fail the serialization.
+     *
+     * @param jsonArrayElements The array element names.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setJsonArrayElements(Optional<String> jsonArrayElements) {
+        this.jsonArrayElements = jsonArrayElements.map(names -> Stream.of(names.split(","))
+                .map(String::trim).filter(name -> !name.isEmpty()).collect(Collectors.toSet())).orElse(Collections.emptySet());
+        return this;
+    }
+
+    /**
+     * Set the elements to serialize, as a comma separated list of element paths relative to the fragment root
+     * e.g. "<code>customer/name, items/*&#47;sku</code>". Only the listed elements (with their subtrees) and the
+     * elements on the way to them are serialized.
+     * <p/>
+     * By default, all elements are serialized.
+     *
+     * @param includeElements The included element paths.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setIncludeElements(Optional<String> includeElements) {
+        this.includeElements = includeElements.orElse(null);
+        return this;
+    }
+
+    /**
+     * Set the elements not to serialize, as a comma separated list of element paths relative to the fragment
+     * root. Excluded elements are pruned with their subtrees, even inside included elements.
+     *
+     * @param excludeElements The excluded element paths.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setExcludeElements(Optional<String> excludeElements) {
+        this.excludeElements = excludeElements.orElse(null);
+        return this;
+    }
+
+    /**
+     * Set the attributes not to serialize, on any element, as a comma separated list of attribute names.
+     *
+     * @param excludeAttributes The excluded attribute names.
+     * @return this instance.
+     */
+    @Inject
+    public FragmentSerializer setExcludeAttributes(Optional<String> excludeAttributes) {
+        this.excludeAttributes = excludeAttributes.orElse(null);
+        return this;
+    }
+
+    @PostConstruct
+    public void postConstruct() {
+        if (bindTo == null && resourceName == null) {
+            throw new SmooksConfigException("One of 'bindTo' or 'resourceName' must be configured.");
+        }
+        if (bindTo != null && resourceName != null) {
+            throw new SmooksConfigException("Only one of 'bindTo' or 'resourceName' can be configured.");
+        }
+        projection = FragmentProjection.parse(includeElements, excludeElements, excludeAttributes);
+        if (format == Format.BINARY && (bindCharSequence || spillThreshold != -1)) {
+            throw new SmooksConfigException("'bindCharSequence' and 'spillThreshold' do not apply to the '" + Format.BINARY + "' format.");
+        }
+        if (format == Format.JSON && jsonTextKey.isEmpty()) {
+            throw new SmooksConfigException("'jsonTextKey' cannot be empty.");
+        }
+        if (spillThreshold < -1) {
+            throw new SmooksConfigException("Invalid 'spillThreshold' value '" + spillThreshold + "'. Must be -1 (never spill) or greater.");
+        }
+        if (spillThreshold != -1 && bindTo == null) {
+            throw new SmooksConfigException("'spillThreshold' only applies to 'bindTo' fragments. Fragments streamed to 'resourceName' are never buffered.");
+        }
+        if (spillThreshold != -1) {
+            if (spillDirectory == null) {
+                spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+            }
+            if (!Files.isDirectory(spillDirectory)) {
+                throw new SmooksConfigException("Invalid 'spillDirectory' '" + spillDirectory + "'. Not a directory.");
+            }
+        }
+    }
+
     public Set<? extends Object> getProducts() {
+        if (bindTo == null) {
+            return Collections.emptySet();
+        }
         return Stream.of(bindTo).collect(Collectors.toSet());
     }
 
     @Override
     public void visitBefore(Element element, ExecutionContext executionContext) throws SmooksException {
-        Map<String, FragmentSerializerVisitor> fragmentSerializers = executionContext.get(FRAGMENT_SERIALIZER_TYPED_KEY);
+        FragmentSerializerDispatcher dispatcher = executionContext.get(FRAGMENT_SERIALIZER_DISPATCHER_TYPED_KEY);
 
-        if (fragmentSerializers == null) {
-            fragmentSerializers = new HashMap<>();
-            executionContext.put(FRAGMENT_SERIALIZER_TYPED_KEY, fragmentSerializers);
+        if (dispatcher == null) {
+            // One event listener for all the serializers in the execution...
+            dispatcher = new FragmentSerializerDispatcher(executionContext);
+            executionContext.put(FRAGMENT_SERIALIZER_DISPATCHER_TYPED_KEY, dispatcher);
+            executionContext.getContentDeliveryRuntime().addExecutionEventListener(dispatcher);
         }
 
-        FragmentSerializerVisitor serializer = new FragmentSerializerVisitor(executionContext);
-        fragmentSerializers.put(bindTo, serializer);
-
-        if (!omitXMLDeclaration) {
-            serializer.fragmentWriter.write("<?xml version=\"1.0\"?>\n");
+        // Reuse the serializer, and its buffer, of this serializer's previous fragment in the execution...
+        FragmentSerializerVisitor serializer = dispatcher.reuse(getSerializerKey());
+        if (serializer == null) {
+            serializer = newSerializer(executionContext, dispatcher);
         }
+        startFragment(serializer, executionContext, dispatcher);
 
         // Now add a dynamic visitor...
-        executionContext.getContentDeliveryRuntime().addExecutionEventListener(serializer);
+        dispatcher.add(getSerializerKey(), serializer);
 
-        notifyStartBean(new NodeFragment(element), executionContext);
+        if (bindTo != null) {
+            notifyStartBean(new NodeFragment(element), executionContext);
+        }
     }
 
     @Override
     public void visitAfter(Element element, ExecutionContext executionContext) throws SmooksException {
-        Map<String, FragmentSerializerVisitor> fragmentSerializers = executionContext.get(FRAGMENT_SERIALIZER_TYPED_KEY);
-        FragmentSerializerVisitor serializer = fragmentSerializers.get(bindTo);
+        FragmentSerializerDispatcher dispatcher = executionContext.get(FRAGMENT_SERIALIZER_DISPATCHER_TYPED_KEY);
+        FragmentSerializerVisitor serializer = dispatcher.get(getSerializerKey());
 
         try {
-            executionContext.getBeanContext().addBean(bindTo, serializer.fragmentWriter.toString().trim(), new NodeFragment(element));
+            if (bindTo != null) {
+                Object fragment;
+                try {
+                    serializer.encoder.endFragment();
+                    if (serializer.fragmentBuffer != null) {
+                        recordFragmentLength(serializer.fragmentBuffer.length());
+                        fragment = serializer.fragmentBuffer.toFragment(bindCharSequence);
+                    } else {
+                        recordFragmentLength(serializer.fragmentBytes.size());
+                        fragment = serializer.fragmentBytes.toByteArray();
+                    }
+                } catch (IOException e) {
+                    if (serializer.fragmentBuffer != null) {
+                        serializer.fragmentBuffer.discard();
+                    }
+                    throw new SmooksException("Failed to complete fragment '" + bindTo + "'.", e);
+                }
+                executionContext.getBeanContext().addBean(bindTo, fragment, new NodeFragment(element));
+            } else {
+                try {
+                    serializer.encoder.endFragment();
+                } catch (IOException e) {
+                    throw new SmooksException("Failed to flush fragment to resource '" + resourceName + "'.", e);
+                }
+            }
         } finally {
-            executionContext.getContentDeliveryRuntime().removeExecutionEventListener(serializer);
+            dispatcher.remove(getSerializerKey());
         }
     }
 
+    private FragmentSerializerVisitor newSerializer(ExecutionContext executionContext, FragmentSerializerDispatcher dispatcher) {
+        FragmentSerializerVisitor serializer = new FragmentSerializerVisitor(dispatcher);
+
+        if (bindTo == null) {
+            // Sink encoder set up per fragment...
+            return serializer;
+        }
+        if (format == Format.BINARY) {
+            BinaryFragmentEncoder encoder = new BinaryFragmentEncoder();
+            serializer.fragmentBytes = new ByteArrayOutputStream(Math.max(FragmentBuffer.MIN_CAPACITY, getExpectedFragmentCapacity()));
+            encoder.setOutputStream(serializer.fragmentBytes);
+            serializer.encoder = encoder;
+        } else {
+            serializer.fragmentBuffer = newFragmentBuffer(executionContext);
+            serializer.encoder = newTextEncoder(serializer.fragmentBuffer);
+        }
+        return serializer;
+    }
+
+    private void startFragment(FragmentSerializerVisitor serializer, ExecutionContext executionContext, FragmentSerializerDispatcher dispatcher) {
+        serializer.reset();
+
+        if (serializer.fragmentBuffer != null) {
+            serializer.fragmentBuffer.reset(getExpectedFragmentCapacity());
+        } else if (serializer.fragmentBytes != null) {
+            serializer.fragmentBytes.reset();
+            // Bound fragments can be read on their own...
+            ((BinaryFragmentEncoder) serializer.encoder).newDictionary();
+        } else if (format == Format.BINARY) {
+            // Fragments streamed to the same resource share a dictionary...
+            BinaryFragmentEncoder encoder = dispatcher.getSinkEncoder(resourceName);
+            encoder.setOutputStream(openSinkOutputStream(executionContext));
+            serializer.encoder = encoder;
+        } else if (serializer.encoder != null) {
+            ((TextFragmentEncoder) serializer.encoder).setWriter(openSinkWriter(executionContext));
+        } else {
+            serializer.encoder = newTextEncoder(openSinkWriter(executionContext));
+        }
+
+        try {
+            serializer.encoder.startFragment();
+        } catch (IOException e) {
+            throw new SmooksException(e.getMessage(), e);
+        }
+    }
+
+    private TextFragmentEncoder newTextEncoder(Writer writer) {
+        if (format == Format.JSON) {
+            return new JsonFragmentEncoder(writer, jsonAttributePrefix, jsonTextKey, jsonArrayElements);
+        }
+        return new XmlFragmentEncoder(writer, omitXMLDeclaration);
+    }
+
+    private FragmentBuffer newFragmentBuffer(ExecutionContext executionContext) {
+        if (spillThreshold == -1) {
+            return new FragmentBuffer(getExpectedFragmentCapacity(), -1, null, null, null);
+        }
+
+        List<SpilledFragment> spilledFragments = executionContext.get(SPILLED_FRAGMENTS_TYPED_KEY);
+        if (spilledFragments == null) {
+            spilledFragments = new ArrayList<>();
+            executionContext.put(SPILLED_FRAGMENTS_TYPED_KEY, spilledFragments);
+        }
+
+        return new FragmentBuffer(getExpectedFragmentCapacity(), spillThreshold, spillDirectory, (format == Format.JSON ? ".json" : ".xml"), spilledFragments);
+    }
+
+    /**
+     * Get the buffer capacity the next fragment is expected to need: the running average fragment length plus
+     * some headroom, so typical fragments are serialized without growing the buffer. Never more than a spilling
+     * buffer can hold.
+     */
+    private int getExpectedFragmentCapacity() {
+        int averageLength = averageFragmentLength;
+        int capacity = averageLength + (averageLength >> 2);
+
+        return (spillThreshold == -1 ? capacity : Math.min(capacity, spillThreshold + 1));
+    }
+
+    private void recordFragmentLength(int length) {
+        if (length == -1) {
+            // Spilled...
+            length = spillThreshold;
+        }
+
+        // Exponential moving average, weighting the latest fragment 1/8. Racy updates from concurrent
+        // executions only lose samples...
+        int averageLength = averageFragmentLength;
+        averageFragmentLength = (averageLength == 0 ? length : averageLength + ((length - averageLength) >> 3));
+    }
+
+    /**
+     * Open the {@link Writer} the fragment is streamed to, in sink mode.
+     * <p/>
+     * The default implementation writes to the <code>resourceName</code> {@link AbstractOutputStreamResource}
+     * via a {@link ResourceWriter}. The writer is flushed, but not closed, after each fragment.
+     *
+     * @param executionContext The execution context.
+     * @return The sink writer.
+     */
+    protected Writer openSinkWriter(ExecutionContext executionContext) {
+        return new ResourceWriter(executionContext, resourceName);
+    }
+
+    /**
+     * Open the {@link OutputStream} the fragment is streamed to, in sink mode with the {@link Format#BINARY BINARY}
+     * format.
+     * <p/>
+     * The default implementation writes to the <code>resourceName</code> {@link AbstractOutputStreamResource}.
+     * The stream is flushed, but not closed, after each fragment.
+     *
+     * @param executionContext The execution context.
+     * @return The sink stream.
+     */
+    protected OutputStream openSinkOutputStream(ExecutionContext executionContext) {
+        OutputStream outputStream = new ResourceOutputStream(executionContext, resourceName).getDelegateOutputStream();
+
+        if (outputStream == null) {
+            throw new SmooksException("OutputResource '" + resourceName + "' not bound to context.  Configure an '" + AbstractOutputStreamResource.class.getName() + "' implementation, or change resource ordering.");
+        }
+        return outputStream;
+    }
+
+    private String getSerializerKey() {
+        return (bindTo != null ? bindTo : AbstractOutputStreamResource.class.getName() + "#" + resourceName);
+    }
+
     private void notifyStartBean(NodeFragment source, ExecutionContext executionContext) {
         BeanContext beanContext = executionContext.getBeanContext();
 
@@ -190,6 +601,10 @@ public class FragmentSerializer implements BeforeVisitor, AfterVisitor, Producer
 
     @Override
     public void onPostFragment(Fragment fragment, ExecutionContext executionContext) {
+        if (bindTo == null) {
+            return;
+        }
+
         BeanContext beanContext = executionContext.getBeanContext();
         BeanId beanId = beanContext.getBeanId(bindTo);
         Object bean = beanContext.getBean(beanId);
@@ -197,124 +612,246 @@ public class FragmentSerializer implements BeforeVisitor, AfterVisitor, Producer
         beanContext.notifyObservers(new DefaultBeanContextLifecycleEvent(executionContext, fragment, BeanLifecycle.END_FRAGMENT, beanId, bean));
         if (!retain) {
             executionContext.getBeanContext().removeBean(beanId, null);
+            if (bean instanceof SpilledFragment) {
+                ((SpilledFragment) bean).delete();
+                executionContext.get(SPILLED_FRAGMENTS_TYPED_KEY).remove(bean);
+            }
         }
     }
 
-    private class FragmentSerializerVisitor implements ExecutionEventListener {
+    @Override
+    public void onPostExecution(ExecutionContext executionContext) {
+        FragmentSerializerDispatcher dispatcher = executionContext.get(FRAGMENT_SERIALIZER_DISPATCHER_TYPED_KEY);
+        if (dispatcher != null) {
+            // Fragments left incomplete by a failed execution, whose spill files are still open...
+            dispatcher.discard(getSerializerKey());
+        }
+
+        List<SpilledFragment> spilledFragments = executionContext.get(SPILLED_FRAGMENTS_TYPED_KEY);
+
+        if (spilledFragments != null) {
+            // Retained fragments, and fragments of a failed execution...
+            spilledFragments.forEach(SpilledFragment::delete);
+            spilledFragments.clear();
+        }
+    }
+
+    /**
+     * Dispatches the fragment events of an execution to its active serializers, classifying each event once
+     * however many serializers are active. A serializer is kept idle once its fragment is complete, for reuse
+     * with the next fragment of the same {@link FragmentSerializer}.
+     * <p/>
+     * The active serializers of a {@link FragmentSerializer} are stacked, since its fragments can be nested
+     * e.g. selector "item" on <code>&lt;item&gt;&lt;item&gt;x&lt;/item&gt;&lt;/item&gt;</code>.
+     */
+    private static class FragmentSerializerDispatcher implements ExecutionEventListener {
 
         private final ExecutionContext executionContext;
-        private final StringWriter fragmentWriter = new StringWriter();
-        private final DefaultDOMSerializerVisitor serializerVisitor;
-        private int depth = 0;
+        private final Map<String, Deque<FragmentSerializerVisitor>> serializersByKey = new HashMap<>();
+        private final Map<String, Deque<FragmentSerializerVisitor>> idleSerializersByKey = new HashMap<>();
+        private final List<FragmentSerializerVisitor> serializers = new ArrayList<>();
+        private final Map<String, RootNamespaceScope> rootNamespaceScopes = new HashMap<>();
+        private final Map<String, BinaryFragmentEncoder> sinkEncoders = new HashMap<>();
 
-        public FragmentSerializerVisitor(ExecutionContext executionContext) {
+        private FragmentSerializerDispatcher(ExecutionContext executionContext) {
             this.executionContext = executionContext;
-            serializerVisitor = new DefaultDOMSerializerVisitor();
-            serializerVisitor.postConstruct();
         }
 
-        public void visitBefore(Element element, ExecutionContext executionContext) throws SmooksException {
-            Element copyElement = (Element) element.cloneNode(false);
-            if (depth == 0) {
-                addRootNamespaces(copyElement, executionContext);
+        /**
+         * Get the namespace declarations to add to a fragment root.
+         * <p/>
+         * The namespaces active at a root are those declared by its open ancestors, plus those the root itself
+         * declares or uses. A serializer's successive roots usually share the same parent element instance (the
+         * parent stays open while its children are filtered), so the declarations rendered for the previous root
+         * are reused while the parent, and the root's own prefix and namespace, are unchanged and the root
+         * declares no namespaces.
+         */
+        private FragmentXmlWriter.NamespaceDeclarations getRootNamespaceDeclarations(String key, Element root) {
+            if (FragmentXmlWriter.declaresNamespaces(root)) {
+                return toNamespaceDeclarations();
             }
 
-            if (childContentOnly) {
-                // Print child content only, so only print the start if the depth is greater
-                // than 1...
-                if (depth > 0) {
-                    try {
-                        serializerVisitor.writeStartElement(copyElement, fragmentWriter, null);
-                    } catch (IOException e) {
-                        throw new SmooksException(e.getMessage(), e);
-                    }
-                }
-            } else {
-                try {
-                    // Printing all of the element, so just print the start element...
-                    serializerVisitor.writeStartElement(copyElement, fragmentWriter, null);
-                } catch (IOException e) {
-                    throw new SmooksException(e.getMessage(), e);
-                }
+            RootNamespaceScope scope = rootNamespaceScopes.get(key);
+            Node parent = root.getParentNode();
+            if (scope == null || !scope.isScopeOf(parent, root)) {
+                scope = new RootNamespaceScope(parent, root, toNamespaceDeclarations());
+                rootNamespaceScopes.put(key, scope);
             }
-            depth++;
+
+            return scope.namespaceDeclarations;
         }
 
-        public void visitChildText(CharacterData characterData, ExecutionContext executionContext) throws SmooksException {
-            try {
-                serializerVisitor.writeCharacterData(characterData, fragmentWriter, executionContext);
-            } catch (IOException e) {
-                throw new SmooksException(e.getMessage(), e);
+        private BinaryFragmentEncoder getSinkEncoder(String resourceName) {
+            return sinkEncoders.computeIfAbsent(resourceName, name -> new BinaryFragmentEncoder());
+        }
+
+        private FragmentXmlWriter.NamespaceDeclarations toNamespaceDeclarations() {
+            NamespaceDeclarationStack nsDeclStack = executionContext.get(NamespaceManager.NAMESPACE_DECLARATION_STACK_TYPED_KEY);
+            return FragmentXmlWriter.toNamespaceDeclarations(nsDeclStack.getActiveNamespaces());
+        }
+
+        private void add(String key, FragmentSerializerVisitor serializer) {
+            serializersByKey.computeIfAbsent(key, k -> new ArrayDeque<>()).push(serializer);
+            serializers.add(serializer);
+        }
+
+        private FragmentSerializerVisitor get(String key) {
+            Deque<FragmentSerializerVisitor> activeSerializers = serializersByKey.get(key);
+            return (activeSerializers != null ? activeSerializers.peek() : null);
+        }
+
+        private void remove(String key) {
+            Deque<FragmentSerializerVisitor> activeSerializers = serializersByKey.get(key);
+            FragmentSerializerVisitor serializer = (activeSerializers != null ? activeSerializers.poll() : null);
+            if (serializer != null) {
+                serializers.remove(serializer);
+                idleSerializersByKey.computeIfAbsent(key, k -> new ArrayDeque<>()).push(serializer);
             }
         }
 
-        public void visitAfter(Element element, ExecutionContext executionContext) throws SmooksException {
-            depth--;
-            if (childContentOnly) {
-                // Print child content only, so only print the empty element if the depth is greater
-                // than 1...
-                if (depth > 0) {
-                    try {
-                        serializerVisitor.writeEndElement(element, fragmentWriter, null);
-                    } catch (IOException e) {
-                        throw new SmooksException(e.getMessage(), e);
+        private void discard(String key) {
+            Deque<FragmentSerializerVisitor> activeSerializers = serializersByKey.remove(key);
+            if (activeSerializers != null) {
+                for (FragmentSerializerVisitor serializer : activeSerializers) {
+                    serializers.remove(serializer);
+                    if (serializer.fragmentBuffer != null) {
+                        serializer.fragmentBuffer.discard();
                     }
                 }
-            } else {
-                // Printing all of the elements, so just print the end of the element...
-                try {
-                    serializerVisitor.writeEndElement(element, fragmentWriter, null);
-                } catch (IOException e) {
-                    throw new SmooksException(e.getMessage(), e);
-                }
             }
         }
 
-        private void addRootNamespaces(Element element, ExecutionContext executionContext) {
-            NamespaceDeclarationStack nsDeclStack = executionContext.get(NamespaceManager.NAMESPACE_DECLARATION_STACK_TYPED_KEY);
-            Map<String, String> rootNamespaces = nsDeclStack.getActiveNamespaces();
+        private FragmentSerializerVisitor reuse(String key) {
+            Deque<FragmentSerializerVisitor> idleSerializers = idleSerializersByKey.get(key);
+            return (idleSerializers != null ? idleSerializers.poll() : null);
+        }
+
+        @Override
+        public void onEvent(ExecutionEvent executionEvent) {
+            if (serializers.isEmpty()) {
+                return;
+            }
 
-            if (!rootNamespaces.isEmpty()) {
-                Set<Map.Entry<String, String>> namespaces = rootNamespaces.entrySet();
-                for (Map.Entry<String, String> namespace : namespaces) {
-                    addNamespace(namespace.getKey(), namespace.getValue(), element);
+            if (executionEvent instanceof StartFragmentExecutionEvent) {
+                Element element = (Element) ((StartFragmentExecutionEvent<?>) executionEvent).getFragment().unwrap();
+                for (int i = 0; i < serializers.size(); i++) {
+                    serializers.get(i).visitBefore(element, executionContext);
+                }
+            } else if (executionEvent instanceof CharDataFragmentExecutionEvent) {
+                CharacterData characterData = (CharacterData) ((CharDataFragmentExecutionEvent) executionEvent).getFragment().unwrap();
+                for (int i = 0; i < serializers.size(); i++) {
+                    serializers.get(i).visitChildText(characterData, executionContext);
+                }
+            } else if (executionEvent instanceof EndFragmentExecutionEvent) {
+                Element element = (Element) ((EndFragmentExecutionEvent<?>) executionEvent).getFragment().unwrap();
+                for (int i = 0; i < serializers.size(); i++) {
+                    serializers.get(i).visitAfter(element, executionContext);
                 }
             }
         }
+    }
 
-        private void addNamespace(String prefix, String namespaceURI, Element element) {
-            if (prefix == null || namespaceURI == null) {
-                // No namespace.  Ignore...
-                return;
-            } else if (prefix.equals(XMLConstants.DEFAULT_NS_PREFIX) && namespaceURI.equals(XMLConstants.NULL_NS_URI)) {
-                // No namespace.  Ignore...
+    /**
+     * Fragment serialization format.
+     */
+    public enum Format {
+        /**
+         * XML text.
+         */
+        XML,
+        /**
+         * Compact binary events, read with a {@link BinaryFragmentReader}. Fragments are bound as <code>byte[]</code>.
+         */
+        BINARY,
+        /**
+         * JSON text, one value per fragment. Streamed fragments are newline delimited.
+         */
+        JSON
+    }
+
+    private static class RootNamespaceScope {
+
+        private final Node parent;
+        private final String prefix;
+        private final String namespaceURI;
+        private final FragmentXmlWriter.NamespaceDeclarations namespaceDeclarations;
+
+        private RootNamespaceScope(Node parent, Element root, FragmentXmlWriter.NamespaceDeclarations namespaceDeclarations) {
+            this.parent = parent;
+            this.prefix = root.getPrefix();
+            this.namespaceURI = root.getNamespaceURI();
+            this.namespaceDeclarations = namespaceDeclarations;
+        }
+
+        private boolean isScopeOf(Node parent, Element root) {
+            return parent == this.parent && Objects.equals(prefix, root.getPrefix()) && Objects.equals(namespaceURI, root.getNamespaceURI());
+        }
+    }
+
+    private class FragmentSerializerVisitor {
+
+        private final FragmentSerializerDispatcher dispatcher;
+        private final FragmentProjection.Cursor projectionCursor;
+        private FragmentEncoder encoder;
+        private FragmentBuffer fragmentBuffer;
+        private ByteArrayOutputStream fragmentBytes;
+        private int depth = 0;
+
+        public FragmentSerializerVisitor(FragmentSerializerDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+            this.projectionCursor = (projection != null ? projection.newCursor() : null);
+        }
+
+        private void reset() {
+            depth = 0;
+            if (projectionCursor != null) {
+                projectionCursor.reset();
+            }
+        }
+
+        public void visitBefore(Element element, ExecutionContext executionContext) throws SmooksException {
+            if (projectionCursor != null && !projectionCursor.enter(element)) {
+                // Pruned...
                 return;
-            } else {
-                String prefixNS = element.getAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, prefix);
-                if (prefixNS != null && !prefixNS.isEmpty()) {
-                    // Already declared (on the element)...
-                    return;
+            }
+
+            // Print child content only, so only print the start if the depth is greater than 0...
+            if (!childContentOnly || depth > 0) {
+                try {
+                    encoder.writeStartElement(element, (depth == 0 ? dispatcher.getRootNamespaceDeclarations(getSerializerKey(), element) : null),
+                            (projection != null ? projection.getExcludedAttributes() : null));
+                } catch (IOException e) {
+                    throw new SmooksException(e.getMessage(), e);
                 }
             }
+            depth++;
+        }
 
-            if (!prefix.isEmpty()) {
-                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:" + prefix, namespaceURI);
-            } else {
-                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns", namespaceURI);
+        public void visitChildText(CharacterData characterData, ExecutionContext executionContext) throws SmooksException {
+            if (projectionCursor != null && !projectionCursor.isTextIncluded()) {
+                return;
+            }
+
+            try {
+                encoder.writeCharacterData(characterData);
+            } catch (IOException e) {
+                throw new SmooksException(e.getMessage(), e);
             }
         }
 
-        @Override
-        public void onEvent(ExecutionEvent executionEvent) {
-            if (executionEvent instanceof StartFragmentExecutionEvent) {
-                StartFragmentExecutionEvent<?> startFragmentEvent = (StartFragmentExecutionEvent<?>) executionEvent;
-                visitBefore((Element) startFragmentEvent.getFragment().unwrap(), executionContext);
-            } else if (executionEvent instanceof CharDataFragmentExecutionEvent) {
-                CharDataFragmentExecutionEvent charDataFragmentEvent = (CharDataFragmentExecutionEvent) executionEvent;
-                visitChildText((CharacterData) charDataFragmentEvent.getFragment().unwrap(), executionContext);
-            } else if (executionEvent instanceof EndFragmentExecutionEvent) {
-                EndFragmentExecutionEvent<?> endFragmentEvent = (EndFragmentExecutionEvent<?>) executionEvent;
-                visitAfter((Element) endFragmentEvent.getFragment().unwrap(), executionContext);
+        public void visitAfter(Element element, ExecutionContext executionContext) throws SmooksException {
+            if (projectionCursor != null && !projectionCursor.exit()) {
+                return;
+            }
+
+            depth--;
+            // Print child content only, so only print the end if the depth is greater than 0...
+            if (!childContentOnly || depth > 0) {
+                try {
+                    encoder.writeEndElement(element);
+                } catch (IOException e) {
+                    throw new SmooksException(e.getMessage(), e);
+                }
             }
         }
     }
@@ -0,0 +1,346 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.Comment;
+import org.w3c.dom.Element;
+import org.w3c.dom.EntityReference;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+import javax.xml.XMLConstants;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Writes the XML of fragment events straight from the event nodes, producing the same markup as
+ * {@link org.smooks.engine.delivery.dom.serialize.DefaultDOMSerializerVisitor} with its default settings
+ * (empty elements not closed, entities rewritten).
+ * <p/>
+ * Namespace declarations injected on the fragment root are written into the attribute list, instead of
+ * being added to a clone of the element. Text is escaped run by run, without copying.
+ */
+final class FragmentXmlWriter {
+
+    private static final String XMLNS_PREFIX = XMLConstants.XMLNS_ATTRIBUTE + ":";
+
+    private FragmentXmlWriter() {
+    }
+
+    /**
+     * Get the namespace declaration attributes to add to a fragment root element.
+     *
+     * @param namespaces The namespaces active at the fragment root, keyed by prefix.
+     * @return The namespace declarations.
+     */
+    static NamespaceDeclarations toNamespaceDeclarations(final Map<String, String> namespaces) {
+        final TreeMap<String, String> namespaceDeclarations = new TreeMap<>();
+
+        for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+            final String prefix = namespace.getKey();
+            final String namespaceURI = namespace.getValue();
+
+            if (prefix == null || namespaceURI == null) {
+                // No namespace.  Ignore...
+                continue;
+            } else if (prefix.equals(XMLConstants.DEFAULT_NS_PREFIX) && namespaceURI.equals(XMLConstants.NULL_NS_URI)) {
+                // No namespace.  Ignore...
+                continue;
+            }
+            namespaceDeclarations.put(prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLNS_PREFIX + prefix, namespaceURI);
+        }
+
+        return new NamespaceDeclarations(namespaceDeclarations);
+    }
+
+    /**
+     * Does an element declare any namespaces i.e. does it have any <code>xmlns</code> attributes.
+     *
+     * @param element The element.
+     * @return True if the element declares namespaces, otherwise false.
+     */
+    static boolean declaresNamespaces(final Element element) {
+        final NamedNodeMap attributes = element.getAttributes();
+
+        for (int i = 0; i < attributes.getLength(); i++) {
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attributes.item(i).getNamespaceURI())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write a start tag.
+     *
+     * @param element               The element.
+     * @param namespaceDeclarations Extra namespace declarations, or null.
+     * @param writer                The writer.
+     * @throws IOException Error writing.
+     * @see #writeStartElement(Element, NamespaceDeclarations, Set, Writer)
+     */
+    static void writeStartElement(final Element element, final NamespaceDeclarations namespaceDeclarations, final Writer writer) throws IOException {
+        writeStartElement(element, namespaceDeclarations, null, writer);
+    }
+
+    /**
+     * Write a start tag.
+     * <p/>
+     * The rendered declaration block is written as is when none of the element's attributes sort among the
+     * declarations. Otherwise the declarations are merged into the attributes one by one.
+     *
+     * @param element               The element.
+     * @param namespaceDeclarations Extra namespace declarations, or null. Declarations of prefixes already
+     *                              declared on the element are skipped.
+     * @param excludedAttributes    The names of the element attributes not to write, or null.
+     * @param writer                The writer.
+     * @throws IOException Error writing.
+     */
+    static void writeStartElement(final Element element, final NamespaceDeclarations namespaceDeclarations, final Set<String> excludedAttributes, final Writer writer) throws IOException {
+        final NamedNodeMap attributes = element.getAttributes();
+        final int attributeCount = attributes.getLength();
+
+        writer.write('<');
+        writer.write(element.getTagName());
+
+        if (namespaceDeclarations == null || namespaceDeclarations.isEmpty()) {
+            writeAttributes(attributes, 0, attributeCount, excludedAttributes, writer);
+        } else {
+            final int blockIndex = namespaceDeclarations.getBlockIndex(attributes);
+
+            if (blockIndex != -1) {
+                writeAttributes(attributes, 0, blockIndex, excludedAttributes, writer);
+                writer.write(namespaceDeclarations.block);
+                writeAttributes(attributes, blockIndex, attributeCount, excludedAttributes, writer);
+            } else {
+                // Merge, as the DOM keeps attributes sorted by name...
+                final TreeMap<String, String> declarations = namespaceDeclarations.declarations;
+                Map.Entry<String, String> namespaceDeclaration = nextUndeclared(declarations, null, element);
+                for (int i = 0; i < attributeCount; i++) {
+                    final Attr attribute = (Attr) attributes.item(i);
+                    final String attributeName = attribute.getName();
+                    while (namespaceDeclaration != null && namespaceDeclaration.getKey().compareTo(attributeName) < 0) {
+                        writeAttribute(namespaceDeclaration.getKey(), namespaceDeclaration.getValue(), writer);
+                        namespaceDeclaration = nextUndeclared(declarations, namespaceDeclaration.getKey(), element);
+                    }
+                    if (excludedAttributes == null || !excludedAttributes.contains(attributeName)) {
+                        writeAttribute(attributeName, attribute.getValue(), writer);
+                    }
+                }
+                while (namespaceDeclaration != null) {
+                    writeAttribute(namespaceDeclaration.getKey(), namespaceDeclaration.getValue(), writer);
+                    namespaceDeclaration = nextUndeclared(declarations, namespaceDeclaration.getKey(), element);
+                }
+            }
+        }
+
+        writer.write('>');
+    }
+
+    /**
+     * Write an end tag.
+     *
+     * @param element The element.
+     * @param writer  The writer.
+     * @throws IOException Error writing.
+     */
+    static void writeEndElement(final Element element, final Writer writer) throws IOException {
+        writer.write("</");
+        writer.write(element.getTagName());
+        writer.write('>');
+    }
+
+    /**
+     * Write character data i.e. text, CDATA, a comment or an entity reference.
+     *
+     * @param characterData The character data.
+     * @param writer        The writer.
+     * @throws IOException Error writing.
+     */
+    static void writeCharacterData(final Node characterData, final Writer writer) throws IOException {
+        switch (characterData.getNodeType()) {
+            case Node.TEXT_NODE:
+                writeEscaped(((Text) characterData).getData(), false, writer);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writer.write("<![CDATA[");
+                writer.write(((CDATASection) characterData).getData());
+                writer.write("]]>");
+                break;
+            case Node.COMMENT_NODE:
+                writer.write("<!--");
+                writer.write(((Comment) characterData).getData());
+                writer.write("-->");
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                writer.write('&');
+                writer.write(((EntityReference) characterData).getNodeName());
+                writer.write(';');
+                break;
+            default:
+                throw new IOException("Unsupported character data node type " + characterData.getNodeType() + ". Node: [" + characterData + "]");
+        }
+    }
+
+    private static Map.Entry<String, String> nextUndeclared(final TreeMap<String, String> namespaceDeclarations, final String after, final Element element) {
+        Map.Entry<String, String> namespaceDeclaration = (after == null ? namespaceDeclarations.firstEntry() : namespaceDeclarations.higherEntry(after));
+
+        while (namespaceDeclaration != null && element.hasAttribute(namespaceDeclaration.getKey())) {
+            namespaceDeclaration = namespaceDeclarations.higherEntry(namespaceDeclaration.getKey());
+        }
+
+        return namespaceDeclaration;
+    }
+
+    private static void writeAttributes(final NamedNodeMap attributes, final int from, final int to, final Set<String> excludedAttributes, final Writer writer) throws IOException {
+        for (int i = from; i < to; i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            if (excludedAttributes == null || !excludedAttributes.contains(attribute.getName())) {
+                writeAttribute(attribute.getName(), attribute.getValue(), writer);
+            }
+        }
+    }
+
+    private static void writeAttribute(final String name, final String value, final Writer writer) throws IOException {
+        writer.write(' ');
+        writer.write(name);
+        writer.write("=\"");
+        writeEscaped(value, true, writer);
+        writer.write('"');
+    }
+
+    private static void writeEscaped(final String value, final boolean attribute, final Writer writer) throws IOException {
+        final int length = value.length();
+        int runStart = 0;
+
+        for (int i = 0; i < length; i++) {
+            final String entity;
+            switch (value.charAt(i)) {
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '\'':
+                    entity = (attribute ? "&apos;" : null);
+                    break;
+                case '"':
+                    entity = (attribute ? "&quot;" : null);
+                    break;
+                default:
+                    entity = null;
+            }
+            if (entity != null) {
+                writer.write(value, runStart, i - runStart);
+                writer.write(entity);
+                runStart = i + 1;
+            }
+        }
+        writer.write(value, runStart, length - runStart);
+    }
+
+    /**
+     * Namespace declarations added to fragment root elements, sorted by attribute name, with their attribute
+     * block rendered once so roots in an unchanged namespace scope can reuse it.
+     */
+    static final class NamespaceDeclarations {
+
+        private final TreeMap<String, String> declarations;
+        private final String block;
+
+        private NamespaceDeclarations(final TreeMap<String, String> declarations) {
+            this.declarations = declarations;
+
+            final StringWriter blockWriter = new StringWriter();
+            try {
+                for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+                    writeAttribute(declaration.getKey(), declaration.getValue(), blockWriter);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            this.block = blockWriter.toString();
+        }
+
+        boolean isEmpty() {
+            return declarations.isEmpty();
+        }
+
+        /**
+         * Get the declarations, keyed by attribute name e.g. "xmlns:a".
+         */
+        Map<String, String> getDeclarations() {
+            return declarations;
+        }
+
+        /**
+         * Get the index of the first attribute sorting after the declarations, which is where the rendered
+         * block goes, or -1 if an attribute sorts among the declarations (including the element's own
+         * declarations of the same prefixes).
+         */
+        private int getBlockIndex(final NamedNodeMap attributes) {
+            final String first = declarations.firstKey();
+            final String last = declarations.lastKey();
+            final int attributeCount = attributes.getLength();
+
+            for (int i = 0; i < attributeCount; i++) {
+                final String attributeName = ((Attr) attributes.item(i)).getName();
+                if (attributeName.compareTo(first) >= 0) {
+                    return (attributeName.compareTo(last) > 0 ? i : -1);
+                }
+            }
+            return attributeCount;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import org.smooks.api.SmooksException;
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link FragmentEncoder} for the {@link FragmentSerializer.Format#JSON JSON} format, writing each fragment
+ * as a JSON value followed by a newline, as the fragment is filtered.
+ * <p/>
+ * Elements become members named after their local name. An element is written as a string if it has
+ * no attributes and no child elements, and otherwise as an object holding its attributes (as members
+ * prefixed with the attribute prefix), its child elements and its non whitespace text (as a text key member).
+ * Namespace declarations and comments are not written.
+ * <p/>
+ * Nothing is buffered beyond the whitespace seen since the last element event, so the JSON shape is
+ * decided by what comes first:
+ * <ul>
+ *     <li>Repeated sibling elements are only grouped into an array if their name is one of the array
+ *     elements, which are always written as arrays (even with a single occurrence).</li>
+ *     <li>Once an element's text has started a string, any child elements that follow are flattened into
+ *     that string.</li>
+ * </ul>
+ * Content that would need the same member twice in an object (repeated siblings that are not array elements,
+ * array elements interrupted by other siblings, or more than one run of text between child elements) fails
+ * with a {@link SmooksException}, rather than writing an object most JSON parsers would silently drop members of.
+ */
+final class JsonFragmentEncoder extends TextFragmentEncoder {
+
+    // Nothing written for the value yet...
+    private static final int PENDING = 0;
+    // An open string...
+    private static final int STRING = 1;
+    // An open object...
+    private static final int OBJECT = 2;
+
+    private final String attributePrefix;
+    private final String textKey;
+    private final Set<String> arrayElements;
+    private final List<Frame> frames = new ArrayList<>();
+    private final StringBuilder whitespace = new StringBuilder();
+    private int depth;
+    private int flattenDepth;
+
+    JsonFragmentEncoder(final Writer writer, final String attributePrefix, final String textKey, final Set<String> arrayElements) {
+        super(writer);
+        this.attributePrefix = attributePrefix;
+        this.textKey = textKey;
+        this.arrayElements = arrayElements;
+    }
+
+    @Override
+    public void startFragment() {
+        depth = 0;
+        flattenDepth = 0;
+        whitespace.setLength(0);
+        // The fragment value...
+        push(null);
+    }
+
+    @Override
+    public void writeStartElement(final Element element, final FragmentXmlWriter.NamespaceDeclarations namespaceDeclarations, final Set<String> excludedAttributes) throws IOException {
+        final Frame parent = frames.get(depth - 1);
+
+        if (flattenDepth > 0 || parent.state == STRING) {
+            flattenDepth++;
+            return;
+        }
+
+        final String name = getLocalName(element);
+        if (parent.state == PENDING) {
+            writer.write('{');
+            parent.state = OBJECT;
+        } else {
+            closeText(parent);
+        }
+        whitespace.setLength(0);
+
+        if (name.equals(parent.array)) {
+            writer.write(',');
+        } else {
+            closeArray(parent);
+            writeKey(parent, name);
+            if (arrayElements.contains(name)) {
+                writer.write('[');
+                parent.array = name;
+            }
+        }
+
+        final Frame frame = push(name);
+        final NamedNodeMap attributes = element.getAttributes();
+        final int attributeCount = attributes.getLength();
+        for (int i = 0; i < attributeCount; i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            final String attributeName = attribute.getName();
+            if (attributeName.equals("xmlns") || attributeName.startsWith("xmlns:") || (excludedAttributes != null && excludedAttributes.contains(attributeName))) {
+                continue;
+            }
+            if (frame.state == PENDING) {
+                writer.write('{');
+                frame.state = OBJECT;
+            }
+            writeKey(frame, attributePrefix + getLocalName(attribute));
+            writer.write('"');
+            writeEscaped(attribute.getValue());
+            writer.write('"');
+        }
+    }
+
+    @Override
+    public void writeEndElement(final Element element) throws IOException {
+        if (flattenDepth > 0) {
+            flattenDepth--;
+        } else {
+            end();
+        }
+    }
+
+    @Override
+    public void writeCharacterData(final Node characterData) throws IOException {
+        switch (characterData.getNodeType()) {
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                writeText(((CharacterData) characterData).getData());
+                break;
+            case Node.COMMENT_NODE:
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                writeText(resolveEntityReference(characterData.getNodeName()));
+                break;
+            default:
+                throw new IOException("Unsupported character data node type " + characterData.getNodeType() + ". Node: [" + characterData + "]");
+        }
+    }
+
+    @Override
+    public void endFragment() throws IOException {
+        while (depth > 0) {
+            end();
+        }
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private void writeText(final String text) throws IOException {
+        final Frame frame = frames.get(depth - 1);
+
+        if (flattenDepth > 0 || frame.state == STRING || frame.textOpen) {
+            writeEscaped(text);
+            return;
+        }
+        if (isWhitespace(text)) {
+            // Only written if more text follows, before the next element event...
+            whitespace.append(text);
+            return;
+        }
+
+        if (frame.state == PENDING) {
+            frame.state = STRING;
+        } else {
+            closeArray(frame);
+            writeKey(frame, textKey);
+            frame.textOpen = true;
+        }
+        writer.write('"');
+        if (whitespace.length() > 0) {
+            writeEscaped(whitespace.toString());
+            whitespace.setLength(0);
+        }
+        writeEscaped(text);
+    }
+
+    private Frame push(final String name) {
+        if (depth == frames.size()) {
+            frames.add(new Frame());
+        }
+
+        final Frame frame = frames.get(depth++);
+        frame.name = name;
+        frame.state = PENDING;
+        frame.keys.clear();
+        frame.textOpen = false;
+        frame.array = null;
+
+        return frame;
+    }
+
+    private void end() throws IOException {
+        final Frame frame = frames.get(--depth);
+
+        if (frame.state == PENDING) {
+            writer.write('"');
+            writeEscaped(whitespace.toString());
+            writer.write('"');
+        } else if (frame.state == STRING) {
+            writer.write('"');
+        } else {
+            closeText(frame);
+            closeArray(frame);
+            writer.write('}');
+        }
+        whitespace.setLength(0);
+    }
+
+    private void writeKey(final Frame frame, final String key) throws IOException {
+        if (!frame.keys.isEmpty()) {
+            writer.write(',');
+        }
+        if (!frame.keys.add(key)) {
+            throw newDuplicateMemberException(frame, key);
+        }
+        writer.write('"');
+        writeEscaped(key);
+        writer.write("\":");
+    }
+
+    private SmooksException newDuplicateMemberException(final Frame frame, final String key) {
+        final String parent = (frame.name != null ? "element '" + frame.name + "'" : "the fragment");
+
+        if (key.equals(textKey)) {
+            return new SmooksException("Cannot serialize " + parent + " to JSON. It has mixed content, with more than one run of text between its child elements.");
+        } else if (arrayElements.contains(key)) {
+            return new SmooksException("Cannot serialize " + parent + " to JSON. Its '" + key + "' child elements are not consecutive, so cannot be written to a single array.");
+        } else {
+            return new SmooksException("Cannot serialize " + parent + " to JSON. It has more than one '" + key + "' member. Add '" + key + "' to 'jsonArrayElements' to write repeated elements as an array.");
+        }
+    }
+
+    private void closeText(final Frame frame) throws IOException {
+        if (frame.textOpen) {
+            writer.write('"');
+            frame.textOpen = false;
+        }
+    }
+
+    private void closeArray(final Frame frame) throws IOException {
+        if (frame.array != null) {
+            writer.write(']');
+            frame.array = null;
+        }
+    }
+
+    private void writeEscaped(final String value) throws IOException {
+        final int length = value.length();
+        int start = 0;
+
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            final String escape;
+            switch (c) {
+                case '"':
+                    escape = "\\\"";
+                    break;
+                case '\\':
+                    escape = "\\\\";
+                    break;
+                case '\n':
+                    escape = "\\n";
+                    break;
+                case '\r':
+                    escape = "\\r";
+                    break;
+                case '\t':
+                    escape = "\\t";
+                    break;
+                case '\b':
+                    escape = "\\b";
+                    break;
+                case '\f':
+                    escape = "\\f";
+                    break;
+                case '\u2028':
+                case '\u2029':
+                    // Valid JSON, but not valid JavaScript...
+                    escape = (c == '\u2028' ? "\\u2028" : "\\u2029");
+                    break;
+                default:
+                    if (c >= 0x20) {
+                        continue;
+                    }
+                    escape = String.format("\\u%04x", (int) c);
+            }
+            if (i > start) {
+                writer.write(value, start, i - start);
+            }
+            writer.write(escape);
+            start = i + 1;
+        }
+        if (start < length) {
+            writer.write(value, start, length - start);
+        }
+    }
+
+    private static boolean isWhitespace(final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String resolveEntityReference(final String name) {
+        switch (name) {
+            case "amp":
+                return "&";
+            case "lt":
+                return "<";
+            case "gt":
+                return ">";
+            case "quot":
+                return "\"";
+            case "apos":
+                return "'";
+            default:
+                return "&" + name + ";";
+        }
+    }
+
+    private static String getLocalName(final Node node) {
+        return (node.getLocalName() != null ? node.getLocalName() : node.getNodeName());
+    }
+
+    private static class Frame {
+
+        private final Set<String> keys = new HashSet<>();
+        private String name;
+        private int state;
+        private boolean textOpen;
+        private String array;
+    }
+}
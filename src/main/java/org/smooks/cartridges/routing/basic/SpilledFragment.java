@@ -0,0 +1,156 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Handle on a serialized fragment that was spilled to a temporary file because it was larger than
+ * the serializer's <code>spillThreshold</code>.
+ * <p/>
+ * Bound by {@link FragmentSerializer} in place of a String (or {@link FragmentCharSequence}). The fragment
+ * is read lazily from the file, which is encoded in {@link #getCharset() UTF-8}. Routers that understand the
+ * handle (e.g. the {@link org.smooks.cartridges.routing.io.OutputStreamRouter}) copy the file without reading
+ * it onto the heap. {@link #toString()} reads the whole file every time it is called. The handle serializes
+ * as a String.
+ * <p/>
+ * The file is deleted once the fragment is unbound or, for retained fragments, at the end of the execution.
+ * The handle cannot be read after that.
+ */
+public final class SpilledFragment implements Serializable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpilledFragment.class);
+
+    private final transient Path path;
+
+    SpilledFragment(final Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Get the file holding the fragment.
+     *
+     * @return The file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Get the encoding of the file holding the fragment.
+     *
+     * @return The file encoding.
+     */
+    public Charset getCharset() {
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Open a reader on the fragment. The caller must close it.
+     *
+     * @return The reader.
+     * @throws IOException Error opening the file.
+     */
+    public Reader openReader() throws IOException {
+        return Files.newBufferedReader(path, getCharset());
+    }
+
+    /**
+     * Open a stream on the encoded fragment. The caller must close it.
+     *
+     * @return The stream.
+     * @throws IOException Error opening the file.
+     */
+    public InputStream openInputStream() throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    /**
+     * Write the fragment to a writer.
+     *
+     * @param writer The writer.
+     * @throws IOException Error reading the file or writing.
+     */
+    public void writeTo(final Writer writer) throws IOException {
+        try (Reader reader = openReader()) {
+            final char[] chars = new char[8192];
+            int length;
+            while ((length = reader.read(chars)) != -1) {
+                writer.write(chars, 0, length);
+            }
+        }
+    }
+
+    void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.debug("Failed to delete spilled fragment file '" + path + "'.", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return new String(Files.readAllBytes(path), getCharset());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read spilled fragment file '" + path + "'.", e);
+        }
+    }
+
+    private Object writeReplace() {
+        return toString();
+    }
+}
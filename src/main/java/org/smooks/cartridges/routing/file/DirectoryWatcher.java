@@ -0,0 +1,218 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Dispatches {@link WatchService} events for the directories routed to by {@link FileOutputStreamResource}.
+ * <p/>
+ * A single daemon thread serves all the watched directories. A directory is registered with the
+ * {@link WatchService} when its first listener is added, and unregistered when its last listener is removed.
+ * The {@link WatchService} and its thread are started with the first watched directory, and stopped once no
+ * directory is watched, so they do not outlive the resources using them (e.g. on redeployment).
+ */
+final class DirectoryWatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryWatcher.class);
+    private static final DirectoryWatcher INSTANCE = new DirectoryWatcher();
+
+    private final Map<Path, Watch> watches = new HashMap<>();
+    private final Map<WatchKey, Watch> watchesByKey = new HashMap<>();
+    private WatchService watchService;
+
+    private DirectoryWatcher() {
+    }
+
+    static DirectoryWatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start watching a directory for created and deleted files.
+     *
+     * @param directory The directory.
+     * @param listener  The listener to notify of changes.
+     * @return The registration, to be closed when the listener is no longer interested.
+     * @throws IOException The directory could not be watched.
+     */
+    synchronized Registration watch(final Path directory, final Listener listener) throws IOException {
+        final Path watchedDirectory = directory.toAbsolutePath().normalize();
+
+        Watch watch = watches.get(watchedDirectory);
+        if (watch == null) {
+            final WatchKey watchKey;
+            try {
+                watchKey = watchedDirectory.register(getWatchService(), StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException | RuntimeException e) {
+                if (watches.isEmpty() && watchService != null) {
+                    closeWatchService();
+                }
+                throw e;
+            }
+            watch = new Watch(watchedDirectory, watchKey);
+            watches.put(watchedDirectory, watch);
+            watchesByKey.put(watchKey, watch);
+        }
+        watch.listeners.add(listener);
+
+        final Watch registeredWatch = watch;
+        return () -> unwatch(registeredWatch, listener);
+    }
+
+    private synchronized void unwatch(final Watch watch, final Listener listener) {
+        if (watch.listeners.remove(listener) && watch.listeners.isEmpty()) {
+            watch.watchKey.cancel();
+            watches.remove(watch.directory);
+            watchesByKey.remove(watch.watchKey);
+            if (watches.isEmpty()) {
+                closeWatchService();
+            }
+        }
+    }
+
+    private WatchService getWatchService() throws IOException {
+        if (watchService == null) {
+            final WatchService newWatchService = FileSystems.getDefault().newWatchService();
+
+            final Thread thread = new Thread(() -> dispatchEvents(newWatchService), "smooks-routing-directory-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            watchService = newWatchService;
+        }
+        return watchService;
+    }
+
+    private void closeWatchService() {
+        // The dispatch thread stops on the ClosedWatchServiceException...
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOGGER.debug("Failed to close directory watch service.", e);
+        }
+        watchService = null;
+    }
+
+    private void dispatchEvents(final WatchService watchService) {
+        while (true) {
+            final WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                LOGGER.debug("Directory watcher stopped.", e);
+                return;
+            }
+
+            final Watch watch;
+            synchronized (this) {
+                watch = watchesByKey.get(watchKey);
+            }
+            final List<WatchEvent<?>> events = watchKey.pollEvents();
+            if (watch != null) {
+                for (WatchEvent<?> event : events) {
+                    final Path fileName = (event.kind() == StandardWatchEventKinds.OVERFLOW ? null : (Path) event.context());
+                    for (Listener listener : watch.listeners) {
+                        try {
+                            listener.onChange(watch.directory, event.kind(), fileName);
+                        } catch (RuntimeException e) {
+                            LOGGER.error("Directory watch listener failed on '" + watch.directory + "'.", e);
+                        }
+                    }
+                }
+            }
+            watchKey.reset();
+        }
+    }
+
+    /**
+     * Directory change listener.
+     */
+    @FunctionalInterface
+    interface Listener {
+
+        /**
+         * A file was created in, or deleted from, a watched directory.
+         *
+         * @param directory The directory.
+         * @param kind      {@link StandardWatchEventKinds#ENTRY_CREATE}, {@link StandardWatchEventKinds#ENTRY_DELETE},
+         *                  or {@link StandardWatchEventKinds#OVERFLOW} if events were lost.
+         * @param fileName  The name of the file, or null on {@link StandardWatchEventKinds#OVERFLOW}.
+         */
+        void onChange(Path directory, WatchEvent.Kind<?> kind, Path fileName);
+    }
+
+    /**
+     * Listener registration.
+     */
+    interface Registration extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+
+    private static class Watch {
+
+        private final Path directory;
+        private final WatchKey watchKey;
+        private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+        private Watch(final Path directory, final WatchKey watchKey) {
+            this.directory = directory;
+            this.watchKey = watchKey;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.file;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered {@link OutputStream} writing to a {@link FileChannel} through a heap {@link ByteBuffer}.
+ * <p/>
+ * Writes smaller than the buffer are gathered in the buffer and written to the channel when it fills
+ * up (or on {@link #flush()}), so many small writes cost a single system call. Writes at least as large
+ * as the buffer go to the channel directly.
+ * <p/>
+ * A stream is opened per routed fragment, so the buffer is a heap buffer: direct buffers are only freed
+ * once garbage collected, and high volume splits would run out of direct memory long before the heap fills up.
+ * The channel copies heap buffers through the JDK's cached temporary direct buffer.
+ * <p/>
+ * The {@link ForcePolicy} controls when the written bytes are {@link FileChannel#force(boolean) forced}
+ * to the storage device.
+ */
+public class FileChannelOutputStream extends OutputStream {
+
+    private final FileChannel fileChannel;
+    private final ByteBuffer buffer;
+    private final ForcePolicy forcePolicy;
+    private final long forceInterval;
+    private long unforcedBytes;
+    private boolean closed;
+
+    /**
+     * Public constructor.
+     *
+     * @param fileChannel   The channel. Closed when the stream is closed.
+     * @param bufferSize    The size of the buffer.
+     * @param forcePolicy   When to force the written bytes to the storage device.
+     * @param forceInterval The number of bytes between forces, for {@link ForcePolicy#EVERY_N_BYTES}.
+     */
+    public FileChannelOutputStream(final FileChannel fileChannel, final int bufferSize, final ForcePolicy forcePolicy, final long forceInterval) {
+        this(fileChannel, ByteBuffer.allocate(bufferSize), forcePolicy, forceInterval);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param fileChannel   The channel. Closed when the stream is closed.
+     * @param buffer        The buffer. Cleared before use.
+     * @param forcePolicy   When to force the written bytes to the storage device.
+     * @param forceInterval The number of bytes between forces, for {@link ForcePolicy#EVERY_N_BYTES}.
+     */
+    public FileChannelOutputStream(final FileChannel fileChannel, final ByteBuffer buffer, final ForcePolicy forcePolicy, final long forceInterval) {
+        this.fileChannel = fileChannel;
+        this.buffer = buffer;
+        this.forcePolicy = forcePolicy;
+        this.forceInterval = forceInterval;
+        this.buffer.clear();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        assertOpen();
+        if (!buffer.hasRemaining()) {
+            drainBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int off, final int len) throws IOException {
+        assertOpen();
+        if (len > buffer.remaining()) {
+            drainBuffer();
+            if (len >= buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(bytes, off, len));
+                return;
+            }
+        }
+        buffer.put(bytes, off, len);
+    }
+
+    /**
+     * Write the contents of a buffer.
+     *
+     * @param src The buffer. Its position is advanced to its limit.
+     * @throws IOException Error writing to the channel.
+     */
+    public void write(final ByteBuffer src) throws IOException {
+        assertOpen();
+        if (src.remaining() > buffer.remaining()) {
+            drainBuffer();
+            if (src.remaining() >= buffer.capacity()) {
+                writeFully(src);
+                return;
+            }
+        }
+        buffer.put(src);
+    }
+
+    /**
+     * Transfer the contents of a file from its current position, channel to channel, which the OS may do without
+     * copying through the heap. The transferred bytes count towards the {@link ForcePolicy#EVERY_N_BYTES} interval.
+     *
+     * @param source The file. Its position is advanced by the number of bytes transferred.
+     * @return The number of bytes transferred. Less than the rest of the file if the transfer stopped making
+     * progress e.g. the file shrank.
+     * @throws IOException Error reading from the file or writing to the channel.
+     */
+    public long transferFrom(final FileChannel source) throws IOException {
+        assertOpen();
+        drainBuffer();
+
+        final long start = source.position();
+        final long size = source.size();
+        long position = start;
+        while (position < size) {
+            long count = size - position;
+            if (forcePolicy == ForcePolicy.EVERY_N_BYTES) {
+                // Force on the interval, as for buffered writes...
+                count = Math.min(count, Math.max(1, forceInterval - unforcedBytes));
+            }
+            final long transferred = source.transferTo(position, count, fileChannel);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            onWritten(transferred);
+        }
+        source.position(position);
+
+        return position - start;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        assertOpen();
+        drainBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            drainBuffer();
+            if (forcePolicy != ForcePolicy.NONE && (forcePolicy == ForcePolicy.ON_CLOSE || unforcedBytes > 0)) {
+                fileChannel.force(true);
+            }
+        } finally {
+            closed = true;
+            fileChannel.close();
+        }
+    }
+
+    private void drainBuffer() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            try {
+                writeFully(buffer);
+            } finally {
+                buffer.clear();
+            }
+        }
+    }
+
+    private void writeFully(final ByteBuffer src) throws IOException {
+        final int length = src.remaining();
+        while (src.hasRemaining()) {
+            fileChannel.write(src);
+        }
+        onWritten(length);
+    }
+
+    private void onWritten(final long length) throws IOException {
+        if (forcePolicy == ForcePolicy.EVERY_N_BYTES) {
+            unforcedBytes += length;
+            if (unforcedBytes >= forceInterval) {
+                fileChannel.force(false);
+                unforcedBytes = 0;
+            }
+        }
+    }
+
+    private void assertOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed.");
+        }
+    }
+
+    /**
+     * When to force written bytes to the storage device.
+     */
+    public enum ForcePolicy {
+        /**
+         * Leave it to the operating system.
+         */
+        NONE,
+        /**
+         * Force once, when the stream is closed.
+         */
+        ON_CLOSE,
+        /**
+         * Force every <i>forceInterval</i> bytes, and when the stream is closed.
+         */
+        EVERY_N_BYTES
+    }
+}
@@ -0,0 +1,229 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smooks.cartridges.routing.BackPressureGate;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Incrementally maintained count of the files in a directory matching a {@link FileOutputStreamResource}
+ * file name pattern, for the High Water Mark check.
+ * <p/>
+ * The directory is listed once, when the index is first acquired. From then on the count is kept up to date
+ * by {@link DirectoryWatcher} (i.e. {@link java.nio.file.WatchService}) events, and by the files the router
+ * itself creates, making {@link #getCount()} O(1). The directory is listed again if the watch service drops
+ * events, or on {@link #rescan()}.
+ * <p/>
+ * Only a count is kept, not the names of the files. The one exception is the names of the files the router
+ * {@link #onFileCreating(File) is creating}, which are counted right away and kept until their create event
+ * arrives, so that they are not counted twice. Files created or deleted by others while the directory is
+ * being listed may be miscounted, until the next listing.
+ * <p/>
+ * Removing a matching file {@link BackPressureGate#signal(String) signals} the directory's back-pressure gate.
+ * <p/>
+ * Indexes are shared by all resources routing to the same directory with the same file name pattern, and
+ * reference counted. If the directory can't be watched, {@link #getCount()} lists the directory on every call.
+ */
+final class FileCountIndex implements DirectoryWatcher.Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileCountIndex.class);
+    private static final Map<String, FileCountIndex> INDEXES = new HashMap<>();
+
+    private final String key;
+    private final File directory;
+    private final FileFilter fileFilter;
+    private final String backPressureGateName;
+    private final Set<String> pendingFileNames = new HashSet<>();
+    private volatile int count;
+    private DirectoryWatcher.Registration registration;
+    private int referenceCount;
+
+    private FileCountIndex(final String key, final File directory, final FileFilter fileFilter) {
+        this.key = key;
+        this.directory = directory;
+        this.fileFilter = fileFilter;
+        this.backPressureGateName = getBackPressureGateName(directory);
+    }
+
+    /**
+     * Acquire the index for a directory and file name pattern. The index must be {@link #release() released}
+     * once no longer needed.
+     *
+     * @param directory       The directory.
+     * @param fileNamePattern The file name pattern, as configured on the resource.
+     * @param fileFilter      The filter matching the file name pattern.
+     * @return The index.
+     */
+    static FileCountIndex acquire(final File directory, final String fileNamePattern, final FileFilter fileFilter) {
+        final File absoluteDirectory = directory.getAbsoluteFile();
+        final String key = absoluteDirectory.getPath() + File.pathSeparator + fileNamePattern;
+
+        synchronized (INDEXES) {
+            FileCountIndex fileCountIndex = INDEXES.get(key);
+            if (fileCountIndex == null) {
+                fileCountIndex = new FileCountIndex(key, absoluteDirectory, fileFilter);
+                fileCountIndex.watch();
+                INDEXES.put(key, fileCountIndex);
+            }
+            fileCountIndex.referenceCount++;
+
+            return fileCountIndex;
+        }
+    }
+
+    /**
+     * Get the name of the {@link BackPressureGate} routers wait on while a directory is above its High Water Mark.
+     *
+     * @param directory The directory.
+     * @return The gate name.
+     */
+    static String getBackPressureGateName(final File directory) {
+        return "file:" + directory.getAbsolutePath();
+    }
+
+    /**
+     * Release the index. The directory is no longer watched once all references are released.
+     */
+    void release() {
+        synchronized (INDEXES) {
+            if (--referenceCount == 0) {
+                INDEXES.remove(key);
+                if (registration != null) {
+                    registration.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of matching files in the directory.
+     *
+     * @return The file count.
+     */
+    int getCount() {
+        if (registration == null) {
+            return list().length;
+        }
+        return count;
+    }
+
+    /**
+     * Resynchronize the index with the directory contents.
+     */
+    synchronized void rescan() {
+        pendingFileNames.clear();
+        count = list().length;
+    }
+
+    /**
+     * Notify the index of a file the router is about to create (e.g. by renaming a working file), so that it is
+     * counted ahead of its watch service event. Must be called before the file is created, so that the event
+     * can't be dispatched first.
+     *
+     * @param file The file.
+     */
+    synchronized void onFileCreating(final File file) {
+        if (fileFilter.accept(file) && pendingFileNames.add(file.getName())) {
+            count++;
+        }
+    }
+
+    /**
+     * Notify the index that a file reported to {@link #onFileCreating(File)} could not be created.
+     *
+     * @param file The file.
+     */
+    synchronized void onFileNotCreated(final File file) {
+        if (pendingFileNames.remove(file.getName())) {
+            count = Math.max(0, count - 1);
+            BackPressureGate.signal(backPressureGateName);
+        }
+    }
+
+    @Override
+    public synchronized void onChange(final Path watchedDirectory, final WatchEvent.Kind<?> kind, final Path fileName) {
+        if (kind == StandardWatchEventKinds.OVERFLOW) {
+            LOGGER.debug("Lost watch events on directory '{}'. Listing directory.", directory);
+            rescan();
+            BackPressureGate.signal(backPressureGateName);
+        } else if (fileFilter.accept(new File(directory, fileName.toString()))) {
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                if (!pendingFileNames.remove(fileName.toString())) {
+                    count++;
+                }
+            } else {
+                count = Math.max(0, count - 1);
+                BackPressureGate.signal(backPressureGateName);
+            }
+        }
+    }
+
+    private synchronized void watch() {
+        // Watch before listing, so no change is missed. Events are only applied once the
+        // listing is done (this method holds the lock)...
+        try {
+            registration = DirectoryWatcher.getInstance().watch(directory.toPath(), this);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Unable to watch directory '" + directory + "'. The High Water Mark check will list the directory.", e);
+            return;
+        }
+        rescan();
+    }
+
+    private File[] list() {
+        final File[] files = directory.listFiles(fileFilter);
+        return (files != null ? files : new File[0]);
+    }
+}
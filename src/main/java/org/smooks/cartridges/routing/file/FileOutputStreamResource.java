@@ -50,20 +50,25 @@ import org.smooks.api.SmooksException;
 import org.smooks.api.TypedKey;
 import org.smooks.api.expression.ExpressionEvaluator;
 import org.smooks.assertion.AssertArgument;
+import org.smooks.cartridges.routing.BackPressureGate;
+import org.smooks.cartridges.routing.MergedModelCache;
 import org.smooks.cartridges.routing.SmooksRoutingException;
+import org.smooks.cartridges.routing.file.naming.SequenceFileNamingStrategy;
 import org.smooks.engine.expression.MVELExpressionEvaluator;
 import org.smooks.io.AbstractOutputStreamResource;
 import org.smooks.support.DollarBraceDecoder;
 import org.smooks.support.FreeMarkerTemplate;
-import org.smooks.support.FreeMarkerUtils;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 import javax.inject.Inject;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -85,6 +90,9 @@ import java.util.regex.Pattern;
  * Optional properties (default values shown):
  *    &lt;param name="highWaterMark"&gt;200&lt;/param&gt;
  *    &lt;param name="highWaterMarkTimeout"&gt;60000&lt;/param&gt;
+ *    &lt;param name="bufferSize"&gt;8192&lt;/param&gt;
+ *    &lt;param name="forcePolicy"&gt;NONE&lt;/param&gt;
+ *    &lt;param name="forceInterval"&gt;1048576&lt;/param&gt;
  * </pre>
  * <p>
  * Description of configuration properties:
@@ -98,12 +106,21 @@ import java.util.regex.Pattern;
  * <li><i>highWaterMark</i>: max number of output files in the destination directory at any time.
  * <li><i>highWaterMarkTimeout</i>: number of ms to wait for the system to process files in the destination
  * directory so that the number of files drops below the highWaterMark.
- * <li><i>highWaterMarkPollFrequency</i>: number of ms to wait between checks on the High Water Mark, while
- * waiting for it to drop.
+ * The number of files is kept up to date through a {@link java.nio.file.WatchService} on the destination directory, so
+ * the directory is only listed the first time it's routed to (and again if the watch service drops events, or before
+ * failing on the highWaterMarkTimeout).
+ * <li><i>highWaterMarkPollFrequency</i>: max number of ms to wait between checks on the High Water Mark, while
+ * waiting for it to drop. The wait between checks starts at a few ms and doubles up to this value. The destination
+ * directory is also watched, so waiting routers re-check as soon as a file is removed.
  * <li><i>closeOnCondition</i>: An MVEL expression. If it returns true then the output stream is closed on the visitAfter event
  * else it is kept open. If the expression is not set then output stream is closed by default.
  * <li><i>append</i>: Will append to the file specified with the 'fileNamePattern' property. This is useful
  * for example when you want to append to a single csv file.
+ * <li><i>bufferSize</i>: size of the heap buffer between the routers writing to the file and its {@link FileChannel}.
+ * Writes are gathered in the buffer and written to the file when it fills up, or when the stream is flushed or closed.
+ * <li><i>forcePolicy</i>: when to force the written bytes to the storage device. 'NONE' (leave it to the operating system),
+ * 'ON_CLOSE' or 'EVERY_N_BYTES'. See {@link FileChannelOutputStream.ForcePolicy}.
+ * <li><i>forceInterval</i>: number of bytes between forces, for forcePolicy 'EVERY_N_BYTES'.
  * </ul>
  * <p>
  * <b>When does a new file get created?</b><br>
@@ -117,9 +134,11 @@ import java.util.regex.Pattern;
  */
 public class FileOutputStreamResource extends AbstractOutputStreamResource {
     private static final String TMP_FILE_CONTEXT_KEY_PREFIX = FileOutputStreamResource.class.getName() + "#tmpFile:";
+    private static final SequenceFileNamingStrategy TMP_FILE_NAMING_STRATEGY = new SequenceFileNamingStrategy();
 
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
     private static final Object LOCK = new Object();
+    private static final int MAX_INDEXED_DIRECTORIES = 64;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileOutputStreamResource.class);
 
@@ -151,6 +170,27 @@ public class FileOutputStreamResource extends AbstractOutputStreamResource {
     @Inject
     private Optional<ExpressionEvaluator> closeOnCondition;
 
+    @Inject
+    private Integer bufferSize = 8192;
+    @Inject
+    private FileChannelOutputStream.ForcePolicy forcePolicy = FileChannelOutputStream.ForcePolicy.NONE;
+    @Inject
+    private Long forceInterval = 1048576L;
+
+    /*
+     * 	File counts of the destination directories most recently routed to, for the High Water Mark check
+     */
+    private final Map<File, FileCountIndex> fileCountIndexes = new LinkedHashMap<File, FileCountIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, FileCountIndex> eldest) {
+            if (size() > MAX_INDEXED_DIRECTORIES) {
+                eldest.getValue().release();
+                return true;
+            }
+            return false;
+        }
+    };
+
     //	public
 
     public FileOutputStreamResource setFileNamePattern(String fileNamePattern) {
@@ -203,6 +243,22 @@ public class FileOutputStreamResource extends AbstractOutputStreamResource {
         return this;
     }
 
+    public FileOutputStreamResource setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    public FileOutputStreamResource setForcePolicy(FileChannelOutputStream.ForcePolicy forcePolicy) {
+        AssertArgument.isNotNull(forcePolicy, "forcePolicy");
+        this.forcePolicy = forcePolicy;
+        return this;
+    }
+
+    public FileOutputStreamResource setForceInterval(long forceInterval) {
+        this.forceInterval = forceInterval;
+        return this;
+    }
+
     @PostConstruct
     public void initialize() throws SmooksConfigException {
         if (fileNamePattern == null) {
@@ -211,6 +267,12 @@ public class FileOutputStreamResource extends AbstractOutputStreamResource {
         if (destinationDirectoryPattern == null) {
             throw new SmooksConfigException("Null 'destinationDirectoryPattern' configuration parameter.");
         }
+        if (bufferSize < 1) {
+            throw new SmooksConfigException("Invalid 'bufferSize' configuration parameter (" + bufferSize + "). Must be at least 1.");
+        }
+        if (forcePolicy == FileChannelOutputStream.ForcePolicy.EVERY_N_BYTES && forceInterval < 1) {
+            throw new SmooksConfigException("Invalid 'forceInterval' configuration parameter (" + forceInterval + "). Must be at least 1.");
+        }
 
         fileNameTemplate = new FreeMarkerTemplate(fileNamePattern);
         destinationDirectoryTemplate = new FreeMarkerTemplate(destinationDirectoryPattern);
@@ -224,8 +286,8 @@ public class FileOutputStreamResource extends AbstractOutputStreamResource {
     }
 
     @Override
-    public FileOutputStream getOutputStream(final ExecutionContext executionContext) throws SmooksRoutingException, IOException {
-        Map<String, Object> beanMap = FreeMarkerUtils.getMergedModel(executionContext);
+    public OutputStream getOutputStream(final ExecutionContext executionContext) throws SmooksRoutingException, IOException {
+        Map<String, Object> beanMap = MergedModelCache.getMergedModel(executionContext);
         String destinationDirName = destinationDirectoryTemplate.apply(beanMap);
         File destinationDirectory = new File(destinationDirName);
 
@@ -234,15 +296,24 @@ public class FileOutputStreamResource extends AbstractOutputStreamResource {
 
         if (append) {
             File outputFile = new File(destinationDirectory, getOutputFileName(executionContext));
-            return new FileOutputStream(outputFile, true);
+            return newOutputStream(FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
         } else {
-            final File tmpFile = File.createTempFile("." + UUID.randomUUID().toString(), ".working", destinationDirectory);
-            final FileOutputStream fileOutputStream = new FileOutputStream(tmpFile, false);
+            final File tmpFile = new File(destinationDirectory, TMP_FILE_NAMING_STRATEGY.generateFileName(".", null) + ".working");
+            final OutputStream outputStream = newOutputStream(FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
             executionContext.put(TypedKey.of(TMP_FILE_CONTEXT_KEY_PREFIX + getResourceName()), tmpFile);
-            return fileOutputStream;
+            return outputStream;
         }
     }
 
+    /**
+     * Creates the stream written to by the routers, on an open file channel.
+     * <p>
+     * Subclasses may override this behaviour.
+     */
+    protected OutputStream newOutputStream(FileChannel fileChannel) {
+        return new FileChannelOutputStream(fileChannel, bufferSize, forcePolicy, forceInterval);
+    }
+
     private void assertTargetDirectoryOK(File destinationDirectory) throws SmooksRoutingException {
         if (destinationDirectory.exists() && !destinationDirectory.isDirectory()) {
             throw new SmooksRoutingException("The file routing target directory '" + destinationDirectory.getAbsolutePath() + "' exist but is not a directory. destinationDirectoryPattern: '" + destinationDirectoryPattern + "'");
@@ -268,31 +339,48 @@ public class FileOutputStreamResource extends AbstractOutputStreamResource {
             return;
         }
 
-        File[] currentList = destinationDirectory.listFiles(fileFilter);
-        if (currentList.length >= highWaterMark) {
-            long start = System.currentTimeMillis();
-
+        final FileCountIndex fileCountIndex = getFileCountIndex(destinationDirectory);
+        final int fileCount = fileCountIndex.getCount();
+        if (fileCount >= highWaterMark) {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Destination directoy '" + destinationDirectory.getAbsolutePath() + "' contains " + currentList.length + " file matching pattern '" + listFileNamePattern + "'.  High Water Mark is " + highWaterMark + ".  Waiting for file count to drop.");
+                LOGGER.debug("Destination directoy '" + destinationDirectory.getAbsolutePath() + "' contains " + fileCount + " file matching pattern '" + listFileNamePattern + "'.  High Water Mark is " + highWaterMark + ".  Waiting for file count to drop.");
             }
 
-            while (System.currentTimeMillis() < start + highWaterMarkTimeout) {
-                try {
-                    Thread.sleep(highWaterMarkPollFrequency);
-                } catch (InterruptedException e) {
-                    LOGGER.error("Interrupted", e);
-                    return;
-                }
-                currentList = destinationDirectory.listFiles(fileFilter);
-                if (currentList.length < highWaterMark) {
+            try {
+                if (BackPressureGate.await(FileCountIndex.getBackPressureGateName(destinationDirectory), () -> fileCountIndex.getCount() < highWaterMark, highWaterMarkTimeout, highWaterMarkPollFrequency)) {
                     return;
                 }
+            } catch (InterruptedException e) {
+                LOGGER.error("Interrupted", e);
+                return;
+            }
+
+            // Make sure we're not failing on a stale count...
+            fileCountIndex.rescan();
+            if (fileCountIndex.getCount() < highWaterMark) {
+                return;
             }
 
             throw new SmooksRoutingException("Failed to route message to Filesystem destination '" + destinationDirectory.getAbsolutePath() + "'. Timed out (" + highWaterMarkTimeout + " ms) waiting for the number of '" + listFileNamePattern + "' files to drop below High Water Mark (" + highWaterMark + ").  Consider increasing 'highWaterMark' and/or 'highWaterMarkTimeout' param values.");
         }
     }
 
+    private FileCountIndex getFileCountIndex(File destinationDirectory) {
+        synchronized (fileCountIndexes) {
+            return fileCountIndexes.computeIfAbsent(destinationDirectory.getAbsoluteFile(), directory -> FileCountIndex.acquire(directory, fileNamePattern, fileFilter));
+        }
+    }
+
+    @PreDestroy
+    public void releaseFileCountIndexes() {
+        synchronized (fileCountIndexes) {
+            for (FileCountIndex fileCountIndex : fileCountIndexes.values()) {
+                fileCountIndex.release();
+            }
+            fileCountIndexes.clear();
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.smooks.io.AbstractOutputStreamResource#closeCondition(org.smooks.container.ExecutionContext)
      */
@@ -333,9 +421,18 @@ public class FileOutputStreamResource extends AbstractOutputStreamResource {
             throw new SmooksException("Could not rename [" + workingFile.getAbsolutePath() + "] to [" + newFile.getAbsolutePath() + "]. [" + newFile.getAbsolutePath() + "] already exists.");
         }
 
+        //	count the new file ahead of its watch event
+        FileCountIndex fileCountIndex = (highWaterMark != -1 ? getFileCountIndex(newFile.getParentFile()) : null);
+        if (fileCountIndex != null) {
+            fileCountIndex.onFileCreating(newFile);
+        }
+
         //	try to rename the tmp file to the new file
         boolean renameTo = workingFile.renameTo(newFile);
         if (!renameTo) {
+            if (fileCountIndex != null) {
+                fileCountIndex.onFileNotCreated(newFile);
+            }
             throw new SmooksException("Could not rename [" + workingFile.getAbsolutePath() + "] to [" + newFile.getAbsolutePath() + "]");
         }
         workingFile.delete();
@@ -344,7 +441,7 @@ public class FileOutputStreamResource extends AbstractOutputStreamResource {
     }
 
     private String getOutputFileName(ExecutionContext executionContext) {
-        Map<String, Object> beanMap = FreeMarkerUtils.getMergedModel(executionContext);
+        Map<String, Object> beanMap = MergedModelCache.getMergedModel(executionContext);
         return fileNameTemplate.apply(beanMap);
     }
 
@@ -393,7 +490,7 @@ public class FileOutputStreamResource extends AbstractOutputStreamResource {
     }
 
     private String getListFileName(ExecutionContext executionContext) {
-        Map<String, Object> beanMap = FreeMarkerUtils.getMergedModel(executionContext);
+        Map<String, Object> beanMap = MergedModelCache.getMergedModel(executionContext);
         return listFileNameTemplate.apply(beanMap);
     }
 
@@ -0,0 +1,133 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.file.naming;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * File naming strategy that generates unique names from a node id, the JVM start
+ * timestamp and a per JVM sequence number.
+ * <p/>
+ * Names have the format <code>&lt;fileNamePattern&gt;&lt;nodeId&gt;-&lt;timestamp&gt;-&lt;sequence&gt;</code>.
+ * The timestamp and the sequence are written in decimal, or in base 32 (digits and the letters
+ * <code>a</code> to <code>v</code>) for shorter names.
+ * <p/>
+ * Unlike {@link UniqueFileNamingStrategy}, no random numbers or host lookups are involved per
+ * name. Each thread reserves ranges of {@value #SEQUENCE_BLOCK_SIZE} sequence numbers from a
+ * shared counter and then numbers its names without contention, so sequence numbers are unique
+ * but not ordered across threads.
+ * <p/>
+ * Names are unique across a cluster of routing nodes as long as every node is given a different
+ * node id. The node id defaults to the <code>{@value #NODE_ID_PROPERTY}</code> system property, or
+ * failing that to the JVM's process id and host name.
+ */
+public class SequenceFileNamingStrategy implements NamingStrategy {
+
+    public static final String NODE_ID_PROPERTY = "org.smooks.cartridges.routing.nodeId";
+    public static final int SEQUENCE_BLOCK_SIZE = 1024;
+
+    private static final Pattern NODE_ID_PATTERN = Pattern.compile("[A-Za-z0-9_.\\-]+");
+    private static final long START_TIMESTAMP = System.currentTimeMillis();
+    private static final AtomicLong NEXT_SEQUENCE_BLOCK = new AtomicLong();
+    private static final ThreadLocal<long[]> SEQUENCE_RANGE = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final String namePrefix;
+    private final int radix;
+
+    public SequenceFileNamingStrategy() {
+        this(getDefaultNodeId(), false);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param nodeId  The id of this routing node. Letters, digits, '_', '.' and '-' only.
+     * @param base32  Write the timestamp and sequence in base 32.
+     */
+    public SequenceFileNamingStrategy(final String nodeId, final boolean base32) {
+        if (nodeId == null || !NODE_ID_PATTERN.matcher(nodeId).matches()) {
+            throw new IllegalArgumentException("Invalid nodeId '" + nodeId + "'. Must match '" + NODE_ID_PATTERN.pattern() + "'.");
+        }
+        this.radix = (base32 ? 32 : 10);
+        this.namePrefix = nodeId + "-" + Long.toString(START_TIMESTAMP, radix) + "-";
+    }
+
+    /**
+     * Will generate a String with the format
+     * <fileNamePattern><nodeId>-<timestamp>-<sequence>
+     */
+    public String generateFileName(final String fileNamePattern, final Object object) {
+        final String sequence = Long.toString(nextSequence(), radix);
+        final StringBuilder sb = new StringBuilder((fileNamePattern != null ? fileNamePattern.length() : 0) + namePrefix.length() + sequence.length());
+
+        if (fileNamePattern != null) {
+            sb.append(fileNamePattern);
+        }
+        sb.append(namePrefix).append(sequence);
+
+        return sb.toString();
+    }
+
+    private static long nextSequence() {
+        final long[] range = SEQUENCE_RANGE.get();
+
+        if (range[0] == range[1]) {
+            range[0] = NEXT_SEQUENCE_BLOCK.getAndIncrement() * SEQUENCE_BLOCK_SIZE;
+            range[1] = range[0] + SEQUENCE_BLOCK_SIZE;
+        }
+
+        return range[0]++;
+    }
+
+    private static String getDefaultNodeId() {
+        final String nodeId = System.getProperty(NODE_ID_PROPERTY);
+        if (nodeId != null && !nodeId.trim().isEmpty()) {
+            return nodeId.trim();
+        }
+
+        // "<pid>@<host name>" on the common JVMs...
+        return ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9_.\\-]", "_");
+    }
+}
@@ -45,14 +45,46 @@ package org.smooks.cartridges.routing.file.naming;
 import freemarker.template.TemplateException;
 import org.smooks.support.FreeMarkerTemplate;
 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * TemplatedNamingStrategy uses FreeMarker to generate a file name from
  * the passed in <code>templateString</code> and the <code>dataModel</code>
  * <p/>
+ * Compiled templates are cached by template string, so a strategy instance should be
+ * reused across calls. The cache is bounded to <code>maxCachedTemplates</code> entries; when
+ * full, an arbitrary entry is evicted to make room.
  *
  * @author <a href="mailto:daniel.bevenius@gmail.com">Daniel Bevenius</a>
  */
 public class TemplatedNamingStrategy implements NamingStrategy {
+
+    public static final int DEFAULT_MAX_CACHED_TEMPLATES = 256;
+
+    private final int maxCachedTemplates;
+    private final ConcurrentMap<String, FreeMarkerTemplate> templates = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    public TemplatedNamingStrategy() {
+        this(DEFAULT_MAX_CACHED_TEMPLATES);
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param maxCachedTemplates The maximum number of compiled templates to cache.
+     */
+    public TemplatedNamingStrategy(final int maxCachedTemplates) {
+        if (maxCachedTemplates <= 0) {
+            throw new IllegalArgumentException("maxCachedTemplates must be greater than zero.");
+        }
+        this.maxCachedTemplates = maxCachedTemplates;
+    }
+
     /**
      * Generates a file name by delegating to {@link FreeMarkerTemplate }
      *
@@ -62,8 +94,55 @@ public class TemplatedNamingStrategy implements NamingStrategy {
      * @throws TemplateException
      */
     public String generateFileName(final String templateString, final Object dataModel) throws NamingStrategyException {
-        FreeMarkerTemplate template = new FreeMarkerTemplate(templateString);
-        return template.apply(dataModel);
+        return getTemplate(templateString).apply(dataModel);
+    }
+
+    /**
+     * Get the number of {@link #generateFileName(String, Object)} calls that reused a compiled template.
+     *
+     * @return The template cache hit count.
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Get the number of {@link #generateFileName(String, Object)} calls that had to compile the template.
+     *
+     * @return The template cache miss count.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
     }
 
+    /**
+     * Get the number of compiled templates currently cached.
+     *
+     * @return The template cache size.
+     */
+    public int getCacheSize() {
+        return templates.size();
+    }
+
+    private FreeMarkerTemplate getTemplate(final String templateString) {
+        FreeMarkerTemplate template = templates.get(templateString);
+
+        if (template != null) {
+            cacheHits.incrementAndGet();
+            return template;
+        }
+
+        cacheMisses.incrementAndGet();
+        template = new FreeMarkerTemplate(templateString);
+        if (templates.size() >= maxCachedTemplates) {
+            Iterator<String> keys = templates.keySet().iterator();
+            while (templates.size() >= maxCachedTemplates && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+        FreeMarkerTemplate cachedTemplate = templates.putIfAbsent(templateString, template);
+
+        return (cachedTemplate != null ? cachedTemplate : template);
+    }
 }
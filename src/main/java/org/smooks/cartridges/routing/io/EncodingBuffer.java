@@ -0,0 +1,240 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.io;
+
+import org.smooks.cartridges.routing.basic.FragmentCharSequence;
+import org.smooks.cartridges.routing.basic.SpilledFragment;
+import org.smooks.cartridges.routing.file.FileChannelOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reusable buffer for writing character, {@link ByteBuffer}, stream and file content to an
+ * {@link OutputStream} without allocating per write.
+ * <p/>
+ * Content is copied chunk by chunk through fixed size buffers, so the heap used does not depend on
+ * the size of the content. Characters are encoded with malformed and unmappable characters replaced,
+ * as in {@link String#getBytes(Charset)}. Not thread safe.
+ */
+final class EncodingBuffer {
+
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer;
+    private CharBuffer charBuffer;
+
+    EncodingBuffer(final Charset charset, final int bufferSize) {
+        encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Encode characters to a stream.
+     *
+     * @param chars The characters.
+     * @param out   The stream.
+     * @return The number of bytes written.
+     * @throws IOException Error writing to the stream.
+     */
+    long write(final CharSequence chars, final OutputStream out) throws IOException {
+        final CharBuffer charBuffer = (chars instanceof FragmentCharSequence ? ((FragmentCharSequence) chars).asCharBuffer() : CharBuffer.wrap(chars));
+        long written = 0;
+
+        encoder.reset();
+        buffer.clear();
+        while (encoder.encode(charBuffer, buffer, true).isOverflow()) {
+            written += drain(out);
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            written += drain(out);
+        }
+        return written + drain(out);
+    }
+
+    /**
+     * Write the remaining bytes of a buffer to a stream. Heap buffers, and any buffer written
+     * to a {@link FileChannelOutputStream}, are written without copying.
+     *
+     * @param src The buffer. Its position is advanced to its limit.
+     * @param out The stream.
+     * @return The number of bytes written.
+     * @throws IOException Error writing to the stream.
+     */
+    long write(final ByteBuffer src, final OutputStream out) throws IOException {
+        final int written = src.remaining();
+
+        if (out instanceof FileChannelOutputStream) {
+            ((FileChannelOutputStream) out).write(src);
+        } else if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        } else {
+            final byte[] bytes = buffer.array();
+            while (src.hasRemaining()) {
+                final int length = Math.min(src.remaining(), bytes.length);
+                src.get(bytes, 0, length);
+                out.write(bytes, 0, length);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Encode the characters read from a reader to a stream. The reader is read to its end, but not closed.
+     *
+     * @param reader The reader.
+     * @param out    The stream.
+     * @return The number of bytes written.
+     * @throws IOException Error reading from the reader or writing to the stream.
+     */
+    long write(final Reader reader, final OutputStream out) throws IOException {
+        if (charBuffer == null) {
+            charBuffer = CharBuffer.allocate(buffer.capacity());
+        }
+        long written = 0;
+
+        encoder.reset();
+        buffer.clear();
+        charBuffer.clear();
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            endOfInput = (reader.read(charBuffer) == -1);
+            charBuffer.flip();
+            while (encoder.encode(charBuffer, buffer, endOfInput).isOverflow()) {
+                written += drain(out);
+            }
+            // Keep any unencoded chars e.g. the high half of a surrogate pair...
+            charBuffer.compact();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            written += drain(out);
+        }
+        return written + drain(out);
+    }
+
+    /**
+     * Copy the bytes read from an input stream to a stream. The input stream is read to its end, but not closed.
+     *
+     * @param inputStream The input stream.
+     * @param out         The stream.
+     * @return The number of bytes written.
+     * @throws IOException Error reading from the input stream or writing to the stream.
+     */
+    long write(final InputStream inputStream, final OutputStream out) throws IOException {
+        final byte[] bytes = buffer.array();
+        long written = 0;
+        int length;
+
+        while ((length = inputStream.read(bytes)) != -1) {
+            out.write(bytes, 0, length);
+            written += length;
+        }
+        return written;
+    }
+
+    /**
+     * Write a spilled fragment to a stream. The spill file is copied as is when it is already in the
+     * buffer's encoding, and transcoded otherwise.
+     *
+     * @param fragment The spilled fragment.
+     * @param out      The stream.
+     * @return The number of bytes written.
+     * @throws IOException Error reading the spill file or writing to the stream.
+     */
+    long write(final SpilledFragment fragment, final OutputStream out) throws IOException {
+        if (fragment.getCharset().equals(encoder.charset())) {
+            return write(fragment.getPath(), out);
+        }
+        try (Reader reader = fragment.openReader()) {
+            return write(reader, out);
+        }
+    }
+
+    /**
+     * Copy the contents of a file to a stream. When the stream is a {@link FileChannelOutputStream}, the
+     * file is transferred channel to channel, which the OS may do without copying through the heap.
+     *
+     * @param path The file.
+     * @param out  The stream.
+     * @return The number of bytes written.
+     * @throws IOException Error reading from the file or writing to the stream.
+     */
+    long write(final Path path, final OutputStream out) throws IOException {
+        if (out instanceof FileChannelOutputStream) {
+            try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ)) {
+                final long transferred = ((FileChannelOutputStream) out).transferFrom(source);
+                // Copy whatever the transfer left (e.g. the target takes no more for now) through the heap...
+                return transferred + write(Channels.newInputStream(source), out);
+            }
+        } else {
+            try (InputStream inputStream = Files.newInputStream(path)) {
+                return write(inputStream, out);
+            }
+        }
+    }
+
+    private int drain(final OutputStream out) throws IOException {
+        final int drained;
+
+        buffer.flip();
+        drained = buffer.remaining();
+        if (drained > 0) {
+            write(buffer, out);
+        }
+        buffer.clear();
+        return drained;
+    }
+}
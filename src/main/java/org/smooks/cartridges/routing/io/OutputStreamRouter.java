@@ -46,6 +46,7 @@ import org.smooks.api.ApplicationContext;
 import org.smooks.api.ExecutionContext;
 import org.smooks.api.SmooksConfigException;
 import org.smooks.api.SmooksException;
+import org.smooks.api.TypedKey;
 import org.smooks.api.bean.context.BeanContext;
 import org.smooks.api.bean.repository.BeanId;
 import org.smooks.api.delivery.ordering.Consumer;
@@ -53,6 +54,7 @@ import org.smooks.api.resource.visitor.VisitAfterIf;
 import org.smooks.api.resource.visitor.VisitBeforeIf;
 import org.smooks.api.resource.visitor.sax.ng.AfterVisitor;
 import org.smooks.api.resource.visitor.sax.ng.BeforeVisitor;
+import org.smooks.cartridges.routing.basic.SpilledFragment;
 import org.smooks.cartridges.routing.file.FileOutputStreamResource;
 import org.smooks.io.AbstractOutputStreamResource;
 import org.smooks.io.ResourceOutputStream;
@@ -62,9 +64,18 @@ import jakarta.annotation.PostConstruct;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Path;
 
 /**
  * OutputStreamRouter is a fragment Visitor (DOM/SAX) that can be used to route
@@ -88,6 +99,26 @@ import java.io.OutputStream;
  * <li><code>resourceName </code> is a reference to a previously configured {@link AbstractOutputStreamResource}
  * <li><code>encoding </code> is the encoding used when writing a characters to file
  * </ul>
+ * <p>
+ * <code>byte[]</code> and {@link ByteBuffer} beans are written as is. {@link CharSequence} beans (e.g. Strings)
+ * are encoded through a per thread buffer. {@link InputStream}, {@link Reader}, {@link Path} and {@link File} beans
+ * are streamed in constant heap, as are the {@link SpilledFragment}s bound for oversized serialized fragments.
+ * Streams and readers are read to their end but not closed. Any other bean is written using Java serialization.
+ * <p>
+ * By default every serialized bean gets its own ObjectOutputStream. With <code>sharedObjectStream</code> set, the
+ * serialized beans routed to a resource during an execution are written through one ObjectOutputStream, so the output
+ * can be read back as a single stream and class descriptors are written once. The stream is reset every
+ * <code>objectStreamResetInterval</code> beans to bound its back reference table.
+ * <p>
+ * With a record <code>framing</code> other than {@link RecordFraming#NONE}, every routed bean is written as a length
+ * prefixed record, optionally followed by its {@link Crc32c CRC-32C} (<code>recordChecksum</code>), so readers can
+ * split the output without parsing it. Apart from <code>byte[]</code> and heap {@link ByteBuffer} beans, a framed
+ * record is buffered in memory to get its length.
+ * <p>
+ * The resource stream is flushed after every routed bean by default. Set <code>flushPolicy</code> to flush only every
+ * <code>flushInterval</code> beans ({@link FlushPolicy#EVERY_N_WRITES}) or bytes ({@link FlushPolicy#EVERY_N_BYTES}),
+ * or only when the resource closes the stream ({@link FlushPolicy#ON_CLOSE}), so buffered and network backed resources
+ * can coalesce small records.
  *
  * @author <a href="mailto:daniel.bevenius@gmail.com">Daniel Bevenius</a>
  * @since 1.0
@@ -95,6 +126,9 @@ import java.io.OutputStream;
 @VisitAfterIf(condition = "!parameters.containsKey('visitBefore') || parameters.visitBefore.value != 'true'")
 @VisitBeforeIf(condition = "!parameters.containsKey('visitAfter') || parameters.visitAfter.value != 'true'")
 public class OutputStreamRouter implements BeforeVisitor, AfterVisitor, Consumer {
+    private static final int ENCODING_BUFFER_SIZE = 8192;
+    private static final int MAX_RETAINED_RECORD_BUFFER_SIZE = 1024 * 1024;
+
     @Inject
     private String resourceName;
 
@@ -111,14 +145,64 @@ public class OutputStreamRouter implements BeforeVisitor, AfterVisitor, Consumer
     @Named("beanId")
     private String beanIdName;
 
+    @Inject
+    private Boolean sharedObjectStream = false;
+
+    @Inject
+    private Integer objectStreamResetInterval = 1000;
+
+    @Inject
+    private RecordFraming framing = RecordFraming.NONE;
+
+    @Inject
+    private Boolean recordChecksum = false;
+
+    @Inject
+    private FlushPolicy flushPolicy = FlushPolicy.EVERY_WRITE;
+
+    @Inject
+    private Long flushInterval = -1L;
+
     private BeanId beanId;
 
+    private ThreadLocal<EncodingBuffer> encodingBuffer;
+
+    private final ThreadLocal<RecordBuffer> recordBuffer = ThreadLocal.withInitial(RecordBuffer::new);
+
+    private TypedKey<SharedObjectStream> sharedObjectStreamTypedKey;
+
+    private TypedKey<FlushState> flushStateTypedKey;
+
     @Inject
     private ApplicationContext applicationContext;
 
     @PostConstruct
     public void initialize() throws SmooksConfigException {
         beanId = applicationContext.getBeanIdStore().getBeanId(beanIdName);
+
+        final Charset charset;
+        try {
+            charset = Charset.forName(encoding);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new SmooksConfigException("Unsupported encoding '" + encoding + "'.", e);
+        }
+        encodingBuffer = ThreadLocal.withInitial(() -> new EncodingBuffer(charset, ENCODING_BUFFER_SIZE));
+
+        if (objectStreamResetInterval <= 0) {
+            throw new SmooksConfigException("Invalid 'objectStreamResetInterval' value " + objectStreamResetInterval + ". Must be greater than zero.");
+        }
+        if (sharedObjectStream && framing != RecordFraming.NONE) {
+            throw new SmooksConfigException("'sharedObjectStream' cannot be combined with record 'framing' (" + framing + "). A shared object stream spans records.");
+        }
+        if (recordChecksum && framing == RecordFraming.NONE) {
+            throw new SmooksConfigException("'recordChecksum' requires record 'framing'.");
+        }
+        sharedObjectStreamTypedKey = TypedKey.of(OutputStreamRouter.class.getName() + "#sharedObjectStream:" + resourceName);
+
+        if ((flushPolicy == FlushPolicy.EVERY_N_WRITES || flushPolicy == FlushPolicy.EVERY_N_BYTES) && flushInterval <= 0) {
+            throw new SmooksConfigException("'flushPolicy' " + flushPolicy + " requires a 'flushInterval' greater than zero.");
+        }
+        flushStateTypedKey = TypedKey.of(OutputStreamRouter.class.getName() + "#flushState:" + resourceName);
     }
 
     //	public
@@ -157,23 +241,223 @@ public class OutputStreamRouter implements BeforeVisitor, AfterVisitor, Consumer
             throw new SmooksException("A bean with id [" + beanId + "] was not found in the executionContext");
         }
 
-        OutputStream out = new ResourceOutputStream(executionContext, resourceName);
+        OutputStream out = new ResourceOutputStream(executionContext, resourceName).getDelegateOutputStream();
         try {
-            if (bean instanceof String) {
-                out.write(((String) bean).getBytes(encoding));
-            } else if (bean instanceof byte[]) {
-                out.write(new String((byte[]) bean, encoding).getBytes());
+            final long written;
+            if (framing == RecordFraming.NONE) {
+                written = writeBean(bean, out, executionContext);
             } else {
-                out = new ObjectOutputStream(out);
-                ((ObjectOutputStream) out).writeObject(bean);
+                written = writeRecord(bean, out, executionContext);
             }
 
-            out.flush();
-
+            if (isFlushDue(out, written, executionContext)) {
+                out.flush();
+            }
         } catch (IOException e) {
             final String errorMsg = "IOException while trying to append to file";
             throw new SmooksException(errorMsg, e);
         }
     }
 
+    private long writeBean(final Object bean, final OutputStream out, final ExecutionContext executionContext) throws IOException {
+        if (bean instanceof byte[]) {
+            out.write((byte[]) bean);
+            return ((byte[]) bean).length;
+        } else if (bean instanceof ByteBuffer) {
+            return encodingBuffer.get().write(((ByteBuffer) bean).duplicate(), out);
+        } else if (bean instanceof CharSequence) {
+            return encodingBuffer.get().write((CharSequence) bean, out);
+        } else if (bean instanceof InputStream) {
+            return encodingBuffer.get().write((InputStream) bean, out);
+        } else if (bean instanceof Reader) {
+            return encodingBuffer.get().write((Reader) bean, out);
+        } else if (bean instanceof Path) {
+            return encodingBuffer.get().write((Path) bean, out);
+        } else if (bean instanceof File) {
+            return encodingBuffer.get().write(((File) bean).toPath(), out);
+        } else if (bean instanceof SpilledFragment) {
+            return encodingBuffer.get().write((SpilledFragment) bean, out);
+        } else if (sharedObjectStream) {
+            return getSharedObjectStream(out, executionContext).writeObject(bean);
+        } else {
+            final ObjectStreamTarget target = new ObjectStreamTarget(out);
+            final ObjectOutputStream objectOutputStream = new ObjectOutputStream(target);
+            objectOutputStream.writeObject(bean);
+            objectOutputStream.flush();
+            return target.written;
+        }
+    }
+
+    private long writeRecord(final Object bean, final OutputStream out, final ExecutionContext executionContext) throws IOException {
+        if (bean instanceof byte[]) {
+            final byte[] bytes = (byte[]) bean;
+            return writeRecord(bytes, 0, bytes.length, out);
+        } else if (bean instanceof ByteBuffer && ((ByteBuffer) bean).hasArray()) {
+            final ByteBuffer byteBuffer = (ByteBuffer) bean;
+            return writeRecord(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining(), out);
+        } else {
+            // Record length has to be known up front...
+            final RecordBuffer buffer = recordBuffer.get();
+            try {
+                writeBean(bean, buffer, executionContext);
+                return writeRecord(buffer.getBytes(), 0, buffer.size(), out);
+            } finally {
+                if (buffer.getBytes().length > MAX_RETAINED_RECORD_BUFFER_SIZE) {
+                    recordBuffer.remove();
+                } else {
+                    buffer.reset();
+                }
+            }
+        }
+    }
+
+    private long writeRecord(final byte[] bytes, final int off, final int len, final OutputStream out) throws IOException {
+        // Length prefix bytes aren't counted. Close enough for the flush policy...
+        framing.writeLength(len, out);
+        out.write(bytes, off, len);
+        if (recordChecksum) {
+            final Crc32c crc32c = new Crc32c();
+            crc32c.update(bytes, off, len);
+            RecordFraming.writeInt((int) crc32c.getValue(), out);
+        }
+        return len;
+    }
+
+    private boolean isFlushDue(final OutputStream out, final long written, final ExecutionContext executionContext) {
+        switch (flushPolicy) {
+            case EVERY_WRITE:
+                return true;
+            case ON_CLOSE:
+                return false;
+            default:
+                FlushState flushState = executionContext.get(flushStateTypedKey);
+                if (flushState == null || flushState.target != out) {
+                    flushState = new FlushState(out);
+                    executionContext.put(flushStateTypedKey, flushState);
+                }
+                return flushState.isFlushDue(flushPolicy, flushInterval, written);
+        }
+    }
+
+    private SharedObjectStream getSharedObjectStream(final OutputStream out, final ExecutionContext executionContext) throws IOException {
+        SharedObjectStream objectStream = executionContext.get(sharedObjectStreamTypedKey);
+
+        // The resource may have closed its stream and opened a new one since the last write...
+        if (objectStream == null || objectStream.target != out) {
+            objectStream = new SharedObjectStream(out, objectStreamResetInterval);
+            executionContext.put(sharedObjectStreamTypedKey, objectStream);
+        }
+
+        return objectStream;
+    }
+
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        private RecordBuffer() {
+            super(ENCODING_BUFFER_SIZE);
+        }
+
+        private byte[] getBytes() {
+            return buf;
+        }
+    }
+
+    private static class SharedObjectStream {
+        private final OutputStream target;
+        private final ObjectStreamTarget objectStreamTarget;
+        private final ObjectOutputStream objectOutputStream;
+        private final int resetInterval;
+        private int unresetCount;
+
+        private SharedObjectStream(final OutputStream target, final int resetInterval) throws IOException {
+            this.target = target;
+            this.objectStreamTarget = new ObjectStreamTarget(target);
+            this.objectOutputStream = new ObjectOutputStream(objectStreamTarget);
+            this.resetInterval = resetInterval;
+        }
+
+        private long writeObject(final Object bean) throws IOException {
+            final long writtenBefore = objectStreamTarget.written;
+
+            objectOutputStream.writeObject(bean);
+            if (++unresetCount >= resetInterval) {
+                objectOutputStream.reset();
+                unresetCount = 0;
+            }
+            objectOutputStream.flush();
+
+            return objectStreamTarget.written - writtenBefore;
+        }
+    }
+
+    /**
+     * Target of an ObjectOutputStream. Counts the bytes written and leaves flushing the resource
+     * stream to the flush policy (ObjectOutputStream.flush() must still be called, to drain its own buffer).
+     */
+    private static class ObjectStreamTarget extends OutputStream {
+        private final OutputStream out;
+        private long written;
+
+        private ObjectStreamTarget(final OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int off, final int len) throws IOException {
+            out.write(bytes, off, len);
+            written += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
+    private static class FlushState {
+        private final OutputStream target;
+        private long unflushedWrites;
+        private long unflushedBytes;
+
+        private FlushState(final OutputStream target) {
+            this.target = target;
+        }
+
+        private boolean isFlushDue(final FlushPolicy flushPolicy, final long flushInterval, final long written) {
+            unflushedWrites++;
+            unflushedBytes += written;
+            if ((flushPolicy == FlushPolicy.EVERY_N_WRITES ? unflushedWrites : unflushedBytes) >= flushInterval) {
+                unflushedWrites = 0;
+                unflushedBytes = 0;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * When the router flushes the resource stream.
+     */
+    public enum FlushPolicy {
+        /**
+         * After every routed bean.
+         */
+        EVERY_WRITE,
+        /**
+         * After every <code>flushInterval</code> routed beans.
+         */
+        EVERY_N_WRITES,
+        /**
+         * Once at least <code>flushInterval</code> bytes have been routed since the last flush.
+         */
+        EVERY_N_BYTES,
+        /**
+         * Never. The stream is flushed when the resource closes it.
+         */
+        ON_CLOSE
+    }
 }
@@ -0,0 +1,160 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * How {@link OutputStreamRouter} frames the records it writes to a resource.
+ * <p/>
+ * A framed record is its length prefix, the record bytes and, if enabled, the 4 byte big-endian
+ * {@link Crc32c CRC-32C} of the record bytes. Readers can skip from record to record using
+ * {@link #readLength(InputStream)} without parsing the records.
+ */
+public enum RecordFraming {
+
+    /**
+     * Records are written back to back, without framing.
+     */
+    NONE {
+        @Override
+        public void writeLength(final int length, final OutputStream out) {
+            throw new UnsupportedOperationException("Records are not framed.");
+        }
+
+        @Override
+        public int readLength(final InputStream in) {
+            throw new UnsupportedOperationException("Records are not framed.");
+        }
+    },
+
+    /**
+     * Records are prefixed with their length as an unsigned LEB128 varint (7 bits per byte, least
+     * significant group first, high bit set on all but the last byte).
+     */
+    VARINT {
+        @Override
+        public void writeLength(final int length, final OutputStream out) throws IOException {
+            int value = length;
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        @Override
+        public int readLength(final InputStream in) throws IOException {
+            int length = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                final int b = in.read();
+                if (b == -1) {
+                    if (shift == 0) {
+                        return -1;
+                    }
+                    throw new EOFException("Unexpected end of stream in record length.");
+                }
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return length;
+                }
+            }
+            throw new IOException("Malformed varint record length.");
+        }
+    },
+
+    /**
+     * Records are prefixed with their length as a 4 byte big-endian int.
+     */
+    FIXED32 {
+        @Override
+        public void writeLength(final int length, final OutputStream out) throws IOException {
+            writeInt(length, out);
+        }
+
+        @Override
+        public int readLength(final InputStream in) throws IOException {
+            final int b0 = in.read();
+            if (b0 == -1) {
+                return -1;
+            }
+            return (b0 << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+        }
+    };
+
+    /**
+     * Write a record length prefix.
+     *
+     * @param length The record length.
+     * @param out    The stream.
+     * @throws IOException Error writing to the stream.
+     */
+    public abstract void writeLength(int length, OutputStream out) throws IOException;
+
+    /**
+     * Read a record length prefix.
+     *
+     * @param in The stream.
+     * @return The record length, or -1 if the stream is at its end.
+     * @throws IOException Error reading from the stream, or the stream ends inside the length prefix.
+     */
+    public abstract int readLength(InputStream in) throws IOException;
+
+    static void writeInt(final int value, final OutputStream out) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readByte(final InputStream in) throws IOException {
+        final int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of stream in record length.");
+        }
+        return b;
+    }
+}
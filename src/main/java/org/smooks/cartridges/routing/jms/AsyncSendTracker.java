@@ -0,0 +1,163 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms;
+
+import org.smooks.api.delivery.event.ExecutionEvent;
+import org.smooks.api.delivery.event.ExecutionEventListener;
+import org.smooks.cartridges.routing.SmooksRoutingException;
+import org.smooks.engine.delivery.event.EndFragmentExecutionEvent;
+
+import javax.jms.CompletionListener;
+import javax.jms.Message;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Tracks the asynchronous sends made by a {@link JMSRouter} during a single Smooks execution.
+ * <p/>
+ * Every send takes a permit from the router wide in-flight window, which is given back when the
+ * JMS provider reports the send as complete (or failed). The first failure is kept so that it can
+ * be reported once all sends of the execution are complete.
+ * <p/>
+ * The sends are {@link #complete() completed} at the end of the document element, failing the execution
+ * if any of them failed. Post execution cleanup runs too late for that: Smooks does not report a termination
+ * error set by cleanup to the caller.
+ */
+class AsyncSendTracker implements CompletionListener, ExecutionEventListener {
+
+    private final Semaphore inFlightWindow;
+    private final String destinationName;
+    private int pendingCount;
+    private int failedCount;
+    private Exception firstFailure;
+    private boolean failureReported;
+
+    AsyncSendTracker(final Semaphore inFlightWindow, final String destinationName) {
+        this.inFlightWindow = inFlightWindow;
+        this.destinationName = destinationName;
+    }
+
+    /**
+     * Called before handing a message to the JMS provider. Blocks while the in-flight window is full.
+     */
+    void beforeSend() throws InterruptedException {
+        inFlightWindow.acquire();
+        synchronized (this) {
+            pendingCount++;
+        }
+    }
+
+    /**
+     * Called when the JMS provider rejected the send up front i.e. the listener will not be called.
+     */
+    void sendAborted() {
+        done(null);
+    }
+
+    @Override
+    public void onCompletion(final Message message) {
+        done(null);
+    }
+
+    @Override
+    public void onException(final Message message, final Exception exception) {
+        done(exception);
+    }
+
+    @Override
+    public void onEvent(final ExecutionEvent executionEvent) {
+        if (executionEvent instanceof EndFragmentExecutionEvent && ExecutionBatch.isDocumentElement(((EndFragmentExecutionEvent<?>) executionEvent).getFragment().unwrap())) {
+            complete();
+        }
+    }
+
+    /**
+     * Wait for all sends made so far to complete, and fail if any of them failed.
+     *
+     * @throws SmooksRoutingException One or more sends failed, or interrupted while waiting.
+     */
+    void complete() throws SmooksRoutingException {
+        try {
+            awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmooksRoutingException("Interrupted while waiting for asynchronous JMS Message sends to destination [" + destinationName + "] to complete.", e);
+        }
+
+        synchronized (this) {
+            if (failedCount > 0 && !failureReported) {
+                failureReported = true;
+                throw new SmooksRoutingException(failedCount + " asynchronous JMS Message send(s) to destination [" + destinationName + "] failed.", firstFailure);
+            }
+        }
+    }
+
+    /**
+     * Has any send failed.
+     */
+    synchronized boolean hasFailed() {
+        return failedCount > 0;
+    }
+
+    /**
+     * Wait for all sends to complete.
+     */
+    private synchronized void awaitCompletion() throws InterruptedException {
+        while (pendingCount > 0) {
+            wait();
+        }
+    }
+
+    private void done(final Exception exception) {
+        synchronized (this) {
+            pendingCount--;
+            if (exception != null) {
+                failedCount++;
+                if (firstFailure == null) {
+                    firstFailure = exception;
+                }
+            }
+            notifyAll();
+        }
+        inFlightWindow.release();
+    }
+}
@@ -0,0 +1,106 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms;
+
+import org.smooks.api.delivery.event.ExecutionEvent;
+import org.smooks.api.delivery.event.ExecutionEventListener;
+import org.smooks.engine.delivery.event.EndFragmentExecutionEvent;
+import org.smooks.engine.delivery.event.VisitExecutionEvent;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * The batch of JMS Messages sent by a {@link JMSRouter} during a single Smooks execution, on a transacted
+ * {@link PooledSession} held for the duration of the execution.
+ * <p/>
+ * The termination error of an execution is not yet set when post execution cleanup runs, so the batch
+ * listens to the execution events itself to find out whether the execution succeeded: it is only
+ * {@link #isComplete() complete} once the end of the document has been reached without any visitor failing.
+ */
+class ExecutionBatch implements ExecutionEventListener {
+
+    private final PooledSession pooledSession;
+    private boolean documentEnded;
+    private boolean failed;
+
+    ExecutionBatch(final PooledSession pooledSession) {
+        this.pooledSession = pooledSession;
+    }
+
+    PooledSession getPooledSession() {
+        return pooledSession;
+    }
+
+    /**
+     * Called when the end of the document has been reached.
+     */
+    void documentEnded() {
+        documentEnded = true;
+    }
+
+    /**
+     * Is the execution sending the batch complete i.e. can the batch be committed.
+     */
+    boolean isComplete() {
+        return documentEnded && !failed;
+    }
+
+    @Override
+    public void onEvent(final ExecutionEvent executionEvent) {
+        if (executionEvent instanceof VisitExecutionEvent) {
+            if (((VisitExecutionEvent<?, ?>) executionEvent).getError() != null) {
+                failed = true;
+            }
+        } else if (executionEvent instanceof EndFragmentExecutionEvent) {
+            final Object node = ((EndFragmentExecutionEvent<?>) executionEvent).getFragment().unwrap();
+            if (isDocumentElement(node)) {
+                // The visitAfters of the document element follow. Any failure in those is reported as a VisitExecutionEvent...
+                documentEnded = true;
+            }
+        }
+    }
+
+    static boolean isDocumentElement(final Object node) {
+        return node instanceof Node && ((Node) node).getParentNode() instanceof Document;
+    }
+}
@@ -47,32 +47,43 @@ import org.slf4j.LoggerFactory;
 import org.smooks.api.ExecutionContext;
 import org.smooks.api.SmooksConfigException;
 import org.smooks.api.SmooksException;
+import org.smooks.api.TypedKey;
 import org.smooks.api.delivery.ordering.Consumer;
+import org.smooks.api.lifecycle.PostExecutionLifecycle;
 import org.smooks.api.resource.visitor.VisitAfterIf;
 import org.smooks.api.resource.visitor.VisitBeforeIf;
 import org.smooks.api.resource.visitor.sax.ng.AfterVisitor;
 import org.smooks.api.resource.visitor.sax.ng.BeforeVisitor;
 import org.smooks.assertion.AssertArgument;
+import org.smooks.cartridges.routing.BackPressureGate;
+import org.smooks.cartridges.routing.MergedModelCache;
 import org.smooks.cartridges.routing.SmooksRoutingException;
 import org.smooks.cartridges.routing.jms.message.creationstrategies.MessageCreationStrategy;
 import org.smooks.cartridges.routing.jms.message.creationstrategies.StrategyFactory;
 import org.smooks.cartridges.routing.jms.message.creationstrategies.TextMessageCreationStrategy;
+import org.smooks.cartridges.routing.jms.queuedepth.BrowserQueueDepthProvider;
+import org.smooks.cartridges.routing.jms.queuedepth.CachedQueueDepthProvider;
+import org.smooks.cartridges.routing.jms.queuedepth.InProcessQueueDepthEstimator;
+import org.smooks.cartridges.routing.jms.queuedepth.QueueDepthProvider;
+import org.smooks.cartridges.routing.jms.queuedepth.QueueDepthProviderType;
 import org.smooks.support.FreeMarkerTemplate;
-import org.smooks.support.FreeMarkerUtils;
 import org.w3c.dom.Element;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.jms.*;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import java.util.Enumeration;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 /**
  * <p/>
@@ -102,11 +113,20 @@ import java.util.Properties;
  *    &lt;param name="securityCredential"&gt;password&lt;/param&gt;
  *    &lt;param name="acknowledgeMode"&gt;AUTO_ACKNOWLEDGE&lt;/param&gt;
  *    &lt;param name="transacted"&gt;false&lt;/param&gt;
+ *    &lt;param name="batchSize"&gt;1&lt;/param&gt;
+ *    &lt;param name="batchTimeout"&gt;-1&lt;/param&gt;
  *    &lt;param name="correlationIdPattern"&gt;orderitem-${order.orderId}-${order.orderItem.itemId}&lt;/param&gt;
  *    &lt;param name="messageType"&gt;ObjectMessage&lt;/param&gt;
+ *    &lt;param name="sendMode"&gt;async&lt;/param&gt;
+ *    &lt;param name="asyncMaxInFlight"&gt;100&lt;/param&gt;
  *    &lt;param name="highWaterMark"&gt;50&lt;/param&gt;
  *    &lt;param name="highWaterMarkTimeout"&gt;5000&lt;/param&gt;
  *    &lt;param name="highWaterMarkPollFrequency"&gt;500&lt;/param&gt;
+ *    &lt;param name="queueDepthProvider"&gt;CACHED&lt;/param&gt;
+ *    &lt;param name="sessionPoolMinSize"&gt;1&lt;/param&gt;
+ *    &lt;param name="sessionPoolMaxSize"&gt;8&lt;/param&gt;
+ *    &lt;param name="sessionPoolIdleTimeout"&gt;60000&lt;/param&gt;
+ *    &lt;param name="sessionPoolMaxWait"&gt;60000&lt;/param&gt;
  * </pre>
  * Description of configuration properties:
  * <ul>
@@ -121,13 +141,41 @@ import java.util.Properties;
  * <li><i>securityCredential</i>: the security credentials to use when creating the JMS connection.
  * <li><i>acknowledgeMode</i>: the acknowledge mode to use. One of 'AUTO_ACKNOWLEDGE'(default), 'CLIENT_ACKNOWLEDGE', 'DUPS_OK_ACKNOWLEDGE'.
  * <li><i>transacted</i>: determines if the session should be transacted. Defaults to 'false'.
+ * <li><i>batchSize</i>: number of JMS Messages committed in one transaction when the session is transacted.
+ *      With a batchSize greater than 1, each Smooks execution holds on to a pooled Session from its first send to
+ *      its end, committing every batchSize messages and the remainder at the end of the execution (the remainder is
+ *      rolled back if the execution, or any of its asynchronous sends, failed). No more than sessionPoolMaxSize
+ *      executions can then send concurrently, further executions waiting for a Session. Requires 'transacted' to be
+ *      'true'. Default is 1 (commit every message).
+ * <li><i>batchTimeout</i>: max number of ms a batch may stay uncommitted, checked on every send. Default is -1
+ *      (no time limit).
  * <li><i>correlationIdPattern</i>: JMS Correlation pattern that will be used for the outgoing message. Supports templating.
  * <li><i>messageType</i>: type of JMS Message that should be sent. 'TextMessage'(default), 'ObjectMessage' or 'MapMessage'.
+ * <li><i>sendMode</i>: 'sync'(default) or 'async'. In 'async' mode messages are sent with a JMS 2.0
+ *      {@link CompletionListener}, so the filter does not wait for the broker to acknowledge each message. The
+ *      filter waits for all sends of the execution to complete at the end of the document element, and fails with
+ *      a {@link SmooksRoutingException} if any of them failed. Falls back to 'sync' if the JMS provider does not support asynchronous sends.
+ * <li><i>asyncMaxInFlight</i>: max number of asynchronous sends awaiting completion at any time. Sending blocks
+ *      while the limit is reached. Default is 100.
  * <li><i>highWaterMark</i>: max number of messages that can be sitting in the JMS Destination at any any time. Default is 200.
  * <li><i>highWaterMarkTimeout</i>: number of ms to wait for the system to process JMS Messages from the JMS destination
  * 		so that the number of JMS Messages drops below the highWaterMark. Default is 60000 ms.
- * <li><i>highWaterMarkPollFrequency</i>: number of ms to wait between checks on the High Water Mark, while
- *      waiting for it to drop. Default is 1000 ms.
+ * <li><i>highWaterMarkPollFrequency</i>: max number of ms to wait between checks on the High Water Mark, while
+ *      waiting for it to drop. The wait between checks starts at a few ms and doubles up to this value, and waiting
+ *      routers are woken up as soon as the Queue depth is known to have dropped. Default is 1000 ms.
+ * <li><i>queueDepthProvider</i>: how the number of JMS Messages in a Queue destination is determined for the
+ *      High Water Mark check. 'BROWSER' enumerates the Queue through a QueueBrowser before every send,
+ *      'CACHED'(default) does the same in the background every highWaterMarkPollFrequency ms and adds the messages
+ *      sent since, and 'ESTIMATE' uses in-process sent/consumed counters
+ *      (see {@link InProcessQueueDepthEstimator}). A custom {@link QueueDepthProvider} can be set programmatically.
+ * <li><i>sessionPoolMinSize</i>: number of JMS Sessions (and MessageProducers) opened up front. Default is 1.
+ * <li><i>sessionPoolMaxSize</i>: max number of JMS Sessions open at any time. Each concurrent Smooks execution
+ *      sending through this router borrows its own Session for the duration of a send, or of the whole execution
+ *      with a batchSize greater than 1. Default is 1, or 8 with a batchSize greater than 1.
+ * <li><i>sessionPoolIdleTimeout</i>: number of ms a JMS Session above the sessionPoolMinSize can sit idle before
+ *      it is closed. Default is 60000 ms.
+ * <li><i>sessionPoolMaxWait</i>: number of ms to wait for a JMS Session when all sessionPoolMaxSize sessions
+ *      are in use. Default is 60000 ms.
  * </ul>
  *
  * @author <a href="mailto:daniel.bevenius@gmail.com">Daniel Bevenius</a>
@@ -135,12 +183,17 @@ import java.util.Properties;
  */
 @VisitBeforeIf(condition = "executeBefore")
 @VisitAfterIf(condition = "!executeBefore")
-public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
+public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer, PostExecutionLifecycle {
     /*
      *	Log instance
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(JMSRouter.class);
 
+    /*
+     *	Default max number of pooled JMS Sessions when batching, each one holding the batch of one execution
+     */
+    private static final int DEFAULT_BATCHING_SESSION_POOL_MAX_SIZE = 8;
+
     /*
      *	JNDI Properties holder
      */
@@ -170,6 +223,39 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
     @Inject
     private Long highWaterMarkPollFrequency = 1000L;
 
+    @Inject
+    @Named("queueDepthProvider")
+    private QueueDepthProviderType queueDepthProviderType = QueueDepthProviderType.CACHED;
+    private QueueDepthProvider queueDepthProvider;
+
+    @Inject
+    private Integer sessionPoolMinSize = 1;
+    @Inject
+    private Optional<Integer> sessionPoolMaxSize = Optional.empty();
+    @Inject
+    private Long sessionPoolIdleTimeout = 60000L;
+    @Inject
+    private Long sessionPoolMaxWait = 60000L;
+
+    @Inject
+    private Integer batchSize = 1;
+    @Inject
+    private Long batchTimeout = -1L;
+
+    /*
+     * 	Sessions holding on to an open batch, and the key under which a batch is bound
+     * 	to the execution sending it
+     */
+    private final TypedKey<ExecutionBatch> executionBatchTypedKey = TypedKey.of();
+    private final Set<PooledSession> batchSessions = ConcurrentHashMap.newKeySet();
+
+    private SendMode sendMode = SendMode.SYNC;
+    @Inject
+    private Integer asyncMaxInFlight = 100;
+    private Semaphore asyncInFlightWindow;
+    private volatile boolean asyncSendSupported = true;
+    private final TypedKey<AsyncSendTracker> asyncSendTrackerTypedKey = TypedKey.of();
+
     @Inject
     private Boolean executeBefore = false;
     /*
@@ -188,13 +274,9 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
     private Connection connection;
 
     /*
-     * 	JMS Message producer
+     * 	JMS Sessions and their Message producers
      */
-    private MessageProducer msgProducer;
-    /*
-     * 	JMS Session
-     */
-    private Session session;
+    private volatile SessionPool sessionPool;
 
     @PostConstruct
     public void initialize() throws SmooksConfigException, JMSException {
@@ -207,6 +289,20 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
         if (jmsProperties.getDestinationName() == null) {
             throw new SmooksConfigException("Mandatory 'destinationName' property not defined.");
         }
+        final int sessionPoolMaxSize = this.sessionPoolMaxSize.orElse(batchSize > 1 ? DEFAULT_BATCHING_SESSION_POOL_MAX_SIZE : 1);
+        if (sessionPoolMaxSize < 1 || sessionPoolMinSize < 0 || sessionPoolMinSize > sessionPoolMaxSize) {
+            throw new SmooksConfigException("Invalid JMS Session pool configuration. 'sessionPoolMinSize' (" + sessionPoolMinSize + ") must be between 0 and 'sessionPoolMaxSize' (" + sessionPoolMaxSize + "), and 'sessionPoolMaxSize' must be at least 1.");
+        }
+        if (batchSize < 1) {
+            throw new SmooksConfigException("Invalid 'batchSize' (" + batchSize + "). Must be at least 1.");
+        }
+        if (batchSize > 1 && !jmsProperties.isTransacted()) {
+            throw new SmooksConfigException("A 'batchSize' greater than 1 requires a transacted JMS Session. Set 'transacted' to true.");
+        }
+        if (asyncMaxInFlight < 1) {
+            throw new SmooksConfigException("Invalid 'asyncMaxInFlight' (" + asyncMaxInFlight + "). Must be at least 1.");
+        }
+        asyncInFlightWindow = new Semaphore(asyncMaxInFlight);
 
         try {
             correlationIdPattern.ifPresent(s -> correlationIdTemplate = new FreeMarkerTemplate(s));
@@ -219,10 +315,23 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
                 context = new InitialContext(jndiContextProperties);
             }
             destination = (Destination) context.lookup(jmsProperties.getDestinationName());
-            msgProducer = createMessageProducer(destination, context);
-            setMessageProducerProperties();
+            connection = createConnection(context);
+            sessionPool = new SessionPool(this::createPooledSession, sessionPoolMinSize, sessionPoolMaxSize, sessionPoolIdleTimeout, sessionPoolMaxWait);
+            sessionPool.initialize();
+            connection.start();
+            LOGGER.info("JMS Connection started");
+
+            if (highWaterMark != -1 && destination instanceof Queue) {
+                if (queueDepthProvider == null) {
+                    queueDepthProvider = createQueueDepthProvider();
+                }
+                queueDepthProvider.initialize(connection, (Queue) destination);
+            }
 
             initialized = true;
+        } catch (JMSException e) {
+            final String errorMsg = "JMSException while trying to create MessageProducer for Queue [" + jmsProperties.getDestinationName() + "]";
+            throw new SmooksConfigException(errorMsg, e);
         } catch (NamingException e) {
             final String errorMsg = "NamingException while trying to lookup [" + jmsProperties.getDestinationName() + "]";
             LOGGER.error(errorMsg, e);
@@ -273,6 +382,58 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
         this.highWaterMarkPollFrequency = highWaterMarkPollFrequency;
     }
 
+    public void setQueueDepthProviderType(QueueDepthProviderType queueDepthProviderType) {
+        AssertArgument.isNotNull(queueDepthProviderType, "queueDepthProviderType");
+        this.queueDepthProviderType = queueDepthProviderType;
+    }
+
+    public void setQueueDepthProvider(QueueDepthProvider queueDepthProvider) {
+        AssertArgument.isNotNull(queueDepthProvider, "queueDepthProvider");
+        this.queueDepthProvider = queueDepthProvider;
+    }
+
+    public void setSessionPoolMinSize(int sessionPoolMinSize) {
+        this.sessionPoolMinSize = sessionPoolMinSize;
+    }
+
+    public void setSessionPoolMaxSize(int sessionPoolMaxSize) {
+        this.sessionPoolMaxSize = Optional.of(sessionPoolMaxSize);
+    }
+
+    public void setSessionPoolIdleTimeout(long sessionPoolIdleTimeout) {
+        this.sessionPoolIdleTimeout = sessionPoolIdleTimeout;
+    }
+
+    public void setSessionPoolMaxWait(long sessionPoolMaxWait) {
+        this.sessionPoolMaxWait = sessionPoolMaxWait;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchTimeout(long batchTimeout) {
+        this.batchTimeout = batchTimeout;
+    }
+
+    @Inject
+    public void setSendMode(final Optional<String> sendMode) {
+        try {
+            this.sendMode = SendMode.fromValue(sendMode.orElse(SendMode.SYNC.value()));
+        } catch (IllegalArgumentException e) {
+            throw new SmooksConfigException(e.getMessage(), e);
+        }
+    }
+
+    public void setSendMode(final SendMode sendMode) {
+        AssertArgument.isNotNull(sendMode, "sendMode");
+        this.sendMode = sendMode;
+    }
+
+    public void setAsyncMaxInFlight(int asyncMaxInFlight) {
+        this.asyncMaxInFlight = asyncMaxInFlight;
+    }
+
     @Inject
     public void setJndiContextFactory(final Optional<String> contextFactory) {
         jndiProperties.setContextFactory(contextFactory.orElse(null));
@@ -358,6 +519,18 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
     @Override
     public void visitAfter(final Element element, final ExecutionContext execContext) throws SmooksException {
         visit(execContext);
+
+        if (ExecutionBatch.isDocumentElement(element)) {
+            // The end of the document element was reported before this visit...
+            final AsyncSendTracker asyncSendTracker = execContext.get(asyncSendTrackerTypedKey);
+            if (asyncSendTracker != null) {
+                asyncSendTracker.complete();
+            }
+            final ExecutionBatch executionBatch = execContext.get(executionBatchTypedKey);
+            if (executionBatch != null) {
+                executionBatch.documentEnded();
+            }
+        }
     }
 
     @Override
@@ -365,43 +538,196 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
         visit(execContext);
     }
 
+    @Override
+    public void onPostExecution(final ExecutionContext executionContext) {
+        final AsyncSendTracker asyncSendTracker = executionContext.get(asyncSendTrackerTypedKey);
+        if (asyncSendTracker != null) {
+            executionContext.remove(asyncSendTrackerTypedKey);
+            executionContext.getContentDeliveryRuntime().removeExecutionEventListener(asyncSendTracker);
+            awaitAsyncSends(asyncSendTracker);
+        }
+
+        final ExecutionBatch executionBatch = executionContext.get(executionBatchTypedKey);
+        if (executionBatch != null) {
+            executionContext.remove(executionBatchTypedKey);
+            executionContext.getContentDeliveryRuntime().removeExecutionEventListener(executionBatch);
+            // Roll back the remainder if the execution did not complete, or any of its asynchronous sends failed...
+            endBatch(executionBatch.getPooledSession(), executionBatch.isComplete() && (asyncSendTracker == null || !asyncSendTracker.hasFailed()));
+        }
+    }
+
     private void visit(final ExecutionContext execContext) throws SmooksException {
-        Message message = msgCreationStrategy.createJMSMessage(beanId, execContext, session);
+        final SessionPool sessionPool = this.sessionPool;
+        if (sessionPool == null) {
+            throw new SmooksRoutingException("JMS Router for destination [" + jmsProperties.getDestinationName() + "] is not initialized or has been destroyed.");
+        }
+
+        if (batchSize > 1) {
+            visitBatched(execContext, sessionPool);
+            return;
+        }
+
+        PooledSession pooledSession = sessionPool.borrow();
+        try {
+            createAndSendMessage(execContext, pooledSession);
+        } catch (SmooksRoutingException e) {
+            if (e.getCause() instanceof JMSException) {
+                // The session may no longer be usable...
+                sessionPool.invalidate(pooledSession);
+                pooledSession = null;
+            }
+            throw e;
+        } finally {
+            if (pooledSession != null) {
+                sessionPool.release(pooledSession);
+            }
+        }
+    }
+
+    private void visitBatched(final ExecutionContext execContext, final SessionPool sessionPool) throws SmooksException {
+        ExecutionBatch executionBatch = execContext.get(executionBatchTypedKey);
+        if (executionBatch == null) {
+            executionBatch = new ExecutionBatch(sessionPool.borrow());
+            batchSessions.add(executionBatch.getPooledSession());
+            execContext.put(executionBatchTypedKey, executionBatch);
+            execContext.getContentDeliveryRuntime().addExecutionEventListener(executionBatch);
+        }
+
+        final PooledSession pooledSession = executionBatch.getPooledSession();
+        try {
+            createAndSendMessage(execContext, pooledSession);
+        } catch (SmooksException e) {
+            // Abandon the batch.  The next message (if any) starts a new batch on a new session...
+            execContext.remove(executionBatchTypedKey);
+            execContext.getContentDeliveryRuntime().removeExecutionEventListener(executionBatch);
+            try {
+                endBatch(pooledSession, false);
+            } catch (SmooksRoutingException rollbackException) {
+                LOGGER.debug(rollbackException.getMessage(), rollbackException.getCause());
+            }
+            throw e;
+        }
+    }
+
+    private void createAndSendMessage(final ExecutionContext execContext, final PooledSession pooledSession) throws SmooksException {
+        Message message = msgCreationStrategy.createJMSMessage(beanId, execContext, pooledSession.getSession());
 
         if (correlationIdTemplate != null) {
             setCorrelationID(execContext, message);
         }
 
-        sendMessage(message);
+        if (sendMode == SendMode.ASYNC) {
+            sendMessage(message, pooledSession, getAsyncSendTracker(execContext));
+        } else {
+            sendMessage(message, pooledSession);
+        }
+    }
+
+    private AsyncSendTracker getAsyncSendTracker(final ExecutionContext execContext) {
+        AsyncSendTracker asyncSendTracker = execContext.get(asyncSendTrackerTypedKey);
+        if (asyncSendTracker == null) {
+            asyncSendTracker = new AsyncSendTracker(asyncInFlightWindow, jmsProperties.getDestinationName());
+            execContext.put(asyncSendTrackerTypedKey, asyncSendTracker);
+            execContext.getContentDeliveryRuntime().addExecutionEventListener(asyncSendTracker);
+        }
+        return asyncSendTracker;
+    }
+
+    private void awaitAsyncSends(final AsyncSendTracker asyncSendTracker) {
+        // The execution failed before the end of the document, so the caller already gets an exception.
+        // Any send that failed since can only be logged...
+        try {
+            asyncSendTracker.complete();
+        } catch (SmooksRoutingException e) {
+            LOGGER.error(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Commits (or rolls back) a batch and returns its session to the pool.
+     */
+    private void endBatch(final PooledSession pooledSession, final boolean commit) throws SmooksRoutingException {
+        if (!batchSessions.remove(pooledSession)) {
+            // Abandoned by preDestroy. Closing the connection rolled the batch back...
+            if (commit) {
+                throw new SmooksRoutingException("Batch of JMS Messages sent to destination [" + jmsProperties.getDestinationName() + "] was rolled back. The router was destroyed before the execution completed.");
+            }
+            return;
+        }
+
+        final SessionPool sessionPool = this.sessionPool;
+        try {
+            if (commit) {
+                pooledSession.commit();
+            } else {
+                pooledSession.rollback();
+            }
+        } catch (JMSException e) {
+            if (sessionPool != null) {
+                sessionPool.invalidate(pooledSession);
+            } else {
+                pooledSession.close();
+            }
+            throw new SmooksRoutingException("JMSException while trying to " + (commit ? "commit" : "roll back") + " a batch of JMS Messages sent to destination [" + jmsProperties.getDestinationName() + "].", e);
+        }
+
+        if (sessionPool != null) {
+            sessionPool.release(pooledSession);
+        } else {
+            pooledSession.close();
+        }
     }
 
     //	Lifecycle
 
-    protected MessageProducer createMessageProducer(final Destination destination, final Context context) throws JMSException {
+    protected Connection createConnection(final Context context) throws JMSException {
         try {
             final ConnectionFactory connFactory = (ConnectionFactory) context.lookup(jmsProperties.getConnectionFactoryName());
 
-            connection = (jmsProperties.getSecurityPrincipal() == null && jmsProperties.getSecurityCredential() == null) ?
+            return (jmsProperties.getSecurityPrincipal() == null && jmsProperties.getSecurityCredential() == null) ?
                     connFactory.createConnection() :
                     connFactory.createConnection(jmsProperties.getSecurityPrincipal(), jmsProperties.getSecurityCredential());
-
-            session = connection.createSession(jmsProperties.isTransacted(),
-                    AcknowledgeModeEnum.getAckMode(jmsProperties.getAcknowledgeMode().toUpperCase()).getAcknowledgeModeInt());
-
-            msgProducer = session.createProducer(destination);
-            connection.start();
-            LOGGER.info("JMS Connection started");
-        } catch (JMSException e) {
-            final String errorMsg = "JMSException while trying to create MessageProducer for Queue [" + jmsProperties.getDestinationName() + "]";
-            releaseJMSResources();
-            throw new SmooksConfigException(errorMsg, e);
         } catch (NamingException e) {
             final String errorMsg = "NamingException while trying to lookup ConnectionFactory [" + jmsProperties.getConnectionFactoryName() + "]";
-            releaseJMSResources();
             throw new SmooksConfigException(errorMsg, e);
         }
+    }
+
+    /**
+     * Creates a JMS Session, and a MessageProducer for the destination, to be added to the
+     * session pool.
+     * <p>
+     * Subclasses may override this behaviour.
+     */
+    protected PooledSession createPooledSession() throws JMSException {
+        final Session session = connection.createSession(jmsProperties.isTransacted(),
+                AcknowledgeModeEnum.getAckMode(jmsProperties.getAcknowledgeMode().toUpperCase()).getAcknowledgeModeInt());
+
+        try {
+            final MessageProducer msgProducer = session.createProducer(destination);
+            setMessageProducerProperties(msgProducer);
+            return new PooledSession(session, msgProducer);
+        } catch (JMSException | SmooksConfigException e) {
+            close(session);
+            throw e;
+        }
+    }
 
-        return msgProducer;
+    /**
+     * Creates the {@link QueueDepthProvider} used for the High Water Mark check on Queue destinations,
+     * according to the 'queueDepthProvider' config param.
+     * <p>
+     * Subclasses may override this behaviour.
+     */
+    protected QueueDepthProvider createQueueDepthProvider() {
+        switch (queueDepthProviderType) {
+            case BROWSER:
+                return new BrowserQueueDepthProvider();
+            case ESTIMATE:
+                return new InProcessQueueDepthEstimator(jmsProperties.getConnectionFactoryName());
+            default:
+                return new CachedQueueDepthProvider(new BrowserQueueDepthProvider(), highWaterMarkPollFrequency);
+        }
     }
 
     /**
@@ -414,7 +740,7 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
      * <p>
      * Subclasses may override this behaviour.
      */
-    protected void setMessageProducerProperties() throws SmooksConfigException {
+    protected void setMessageProducerProperties(final MessageProducer msgProducer) throws SmooksConfigException {
         try {
             msgProducer.setTimeToLive(jmsProperties.getTimeToLive());
             msgProducer.setPriority(jmsProperties.getPriority());
@@ -427,7 +753,11 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
         }
     }
 
-    protected void sendMessage(final Message message) throws SmooksRoutingException {
+    protected void sendMessage(final Message message, final PooledSession pooledSession) throws SmooksRoutingException {
+        sendMessage(message, pooledSession, null);
+    }
+
+    private void sendMessage(final Message message, final PooledSession pooledSession, final AsyncSendTracker asyncSendTracker) throws SmooksRoutingException {
         try {
             waitWhileAboveHighWaterMark();
         } catch (JMSException e) {
@@ -435,58 +765,88 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
         }
 
         try {
-            msgProducer.send(message);
+            if (asyncSendTracker != null && asyncSendSupported) {
+                sendAsync(message, pooledSession.getMessageProducer(), asyncSendTracker);
+            } else {
+                pooledSession.getMessageProducer().send(message);
+            }
+            if (queueDepthProvider != null) {
+                queueDepthProvider.onMessageSent();
+            }
         } catch (JMSException e) {
             final String errorMsg = "JMSException while sending Message.";
             throw new SmooksRoutingException(errorMsg, e);
         }
+
+        if (jmsProperties.isTransacted()) {
+            pooledSession.markSent();
+            if (isBatchComplete(pooledSession)) {
+                try {
+                    pooledSession.commit();
+                } catch (JMSException e) {
+                    final String errorMsg = "JMSException while committing JMS transaction.";
+                    throw new SmooksRoutingException(errorMsg, e);
+                }
+            }
+        }
     }
 
-    private void waitWhileAboveHighWaterMark() throws JMSException, SmooksRoutingException {
-        if (highWaterMark == -1) {
-            return;
+    private void sendAsync(final Message message, final MessageProducer msgProducer, final AsyncSendTracker asyncSendTracker) throws JMSException, SmooksRoutingException {
+        try {
+            asyncSendTracker.beforeSend();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmooksRoutingException("Interrupted while waiting for asynchronous JMS Message sends to complete.", e);
         }
 
-        if (session instanceof QueueSession) {
-            QueueSession queueSession = (QueueSession) session;
-            QueueBrowser queueBrowser = queueSession.createBrowser((Queue) destination);
+        try {
+            msgProducer.send(message, asyncSendTracker);
+        } catch (UnsupportedOperationException | AbstractMethodError e) {
+            // Pre JMS 2.0 provider...
+            asyncSendTracker.sendAborted();
+            asyncSendSupported = false;
+            LOGGER.warn("JMS provider does not support asynchronous sends. Falling back to synchronous sends to destination [" + jmsProperties.getDestinationName() + "].");
+            msgProducer.send(message);
+        } catch (JMSException | RuntimeException e) {
+            asyncSendTracker.sendAborted();
+            throw e;
+        }
+    }
 
-            try {
-                int length = getQueueLength(queueBrowser);
-                long start = System.currentTimeMillis();
+    private boolean isBatchComplete(final PooledSession pooledSession) {
+        if (pooledSession.getUncommittedCount() >= batchSize) {
+            return true;
+        }
+        return batchTimeout >= 0 && System.currentTimeMillis() - pooledSession.getBatchStart() >= batchTimeout;
+    }
 
-                if (LOGGER.isDebugEnabled() && length >= highWaterMark) {
-                    LOGGER.debug("Length of JMS destination Queue '" + jmsProperties.getDestinationName() + "' has reached " + length + ".  High Water Mark is " + highWaterMark + ".  Waiting for Queue length to drop.");
-                }
+    private void waitWhileAboveHighWaterMark() throws JMSException, SmooksRoutingException {
+        if (highWaterMark == -1 || queueDepthProvider == null) {
+            return;
+        }
 
-                while (length >= highWaterMark && (System.currentTimeMillis() < start + highWaterMarkTimeout)) {
-                    try {
-                        Thread.sleep(highWaterMarkPollFrequency);
-                    } catch (InterruptedException e) {
-                        LOGGER.error("Interrupted", e);
-                        return;
-                    }
-                    length = getQueueLength(queueBrowser);
-                }
+        int length = queueDepthProvider.getQueueDepth();
+        if (length < highWaterMark) {
+            return;
+        }
 
-                // Check did the queue length drop below the HWM...
-                if (length >= highWaterMark) {
-                    throw new SmooksRoutingException("Failed to route JMS message to Queue destination '" + ((Queue) destination).getQueueName() + "'. Timed out (" + highWaterMarkTimeout + " ms) waiting for queue length to drop below High Water Mark (" + highWaterMark + ").  Consider increasing 'highWaterMark' and/or 'highWaterMarkTimeout' param values.");
-                }
-            } finally {
-                queueBrowser.close();
-            }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Length of JMS destination Queue '" + jmsProperties.getDestinationName() + "' has reached " + length + ".  High Water Mark is " + highWaterMark + ".  Waiting for Queue length to drop.");
         }
-    }
 
-    private int getQueueLength(QueueBrowser queueBrowser) throws JMSException {
-        int length = 0;
-        Enumeration queueEnum = queueBrowser.getEnumeration();
-        while (queueEnum.hasMoreElements()) {
-            length++;
-            queueEnum.nextElement();
+        final String queueName = ((Queue) destination).getQueueName();
+        try {
+            // Only read the depth. Refreshing it (and signalling the gate) is up to the provider...
+            if (BackPressureGate.await(QueueDepthProvider.getBackPressureGateName(queueName), () -> queueDepthProvider.getQueueDepth() < highWaterMark,
+                    highWaterMarkTimeout, highWaterMarkPollFrequency)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            LOGGER.error("Interrupted", e);
+            return;
         }
-        return length;
+
+        throw new SmooksRoutingException("Failed to route JMS message to Queue destination '" + queueName + "'. Timed out (" + highWaterMarkTimeout + " ms) waiting for queue length to drop below High Water Mark (" + highWaterMark + ").  Consider increasing 'highWaterMark' and/or 'highWaterMarkTimeout' param values.");
     }
 
     protected void close(final Connection connection) {
@@ -532,7 +892,7 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
     }
 
     private void setCorrelationID(ExecutionContext execContext, Message message) {
-        Map<String, Object> beanMap = FreeMarkerUtils.getMergedModel(execContext);
+        Map<String, Object> beanMap = MergedModelCache.getMergedModel(execContext);
         String correlationId = correlationIdTemplate.apply(beanMap);
 
         try {
@@ -579,16 +939,14 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
     }
 
     private void releaseJMSResources() throws JMSException {
+        closeQueueDepthProvider();
+        abandonBatches();
         if (connection != null) {
             try {
                 try {
                     connection.stop();
                 } finally {
-                    try {
-                        closeProducer();
-                    } finally {
-                        closeSession();
-                    }
+                    closeSessionPool();
                 }
             } catch (JMSException e) {
                 LOGGER.debug("JMSException while trying to stop JMS Connection.", e);
@@ -599,26 +957,27 @@ public class JMSRouter implements BeforeVisitor, AfterVisitor, Consumer {
         }
     }
 
-    private void closeProducer() {
-        if (msgProducer != null) {
-            try {
-                msgProducer.close();
-            } catch (JMSException e) {
-                LOGGER.debug("JMSException while trying to close JMS Message Producer.", e);
-            } finally {
-                msgProducer = null;
-            }
+    private void abandonBatches() {
+        // The batch sessions belong to executions that may still be running on other threads, and JMS Sessions are
+        // single threaded, so leave them be. Closing the connection rolls back their open transactions...
+        if (!batchSessions.isEmpty()) {
+            LOGGER.warn("Rolling back " + batchSessions.size() + " open batch(es) of JMS Messages sent to destination [" + jmsProperties.getDestinationName() + "].");
+            batchSessions.clear();
         }
     }
 
-    private void closeSession() {
-        if (session != null) {
+    private void closeQueueDepthProvider() {
+        if (queueDepthProvider != null) {
+            queueDepthProvider.close();
+        }
+    }
+
+    private void closeSessionPool() {
+        if (sessionPool != null) {
             try {
-                session.close();
-            } catch (JMSException e) {
-                LOGGER.debug("JMSException while trying to close JMS Session.", e);
+                sessionPool.close();
             } finally {
-                session = null;
+                sessionPool = null;
             }
         }
     }
@@ -0,0 +1,157 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * A JMS {@link Session} and its {@link MessageProducer}, as handed out by a {@link SessionPool}.
+ * <p/>
+ * A PooledSession is only ever used by one thread at a time (between {@link SessionPool#borrow()}
+ * and {@link SessionPool#release(PooledSession)}).
+ */
+public class PooledSession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledSession.class);
+
+    private final Session session;
+    private final MessageProducer messageProducer;
+    private volatile long lastReleased = System.currentTimeMillis();
+    private int uncommittedCount;
+    private long batchStart;
+
+    public PooledSession(final Session session, final MessageProducer messageProducer) {
+        this.session = session;
+        this.messageProducer = messageProducer;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public MessageProducer getMessageProducer() {
+        return messageProducer;
+    }
+
+    /**
+     * Get the number of messages sent on a transacted session since the last commit or rollback.
+     *
+     * @return The number of uncommitted messages.
+     */
+    public int getUncommittedCount() {
+        return uncommittedCount;
+    }
+
+    /**
+     * Get the time the first uncommitted message was sent.
+     *
+     * @return The batch start time (ms), or 0 if there are no uncommitted messages.
+     */
+    public long getBatchStart() {
+        return batchStart;
+    }
+
+    /**
+     * Commit the messages sent on this (transacted) session.
+     *
+     * @throws JMSException Error committing the transaction.
+     */
+    public void commit() throws JMSException {
+        try {
+            session.commit();
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Roll back the messages sent on this (transacted) session.
+     *
+     * @throws JMSException Error rolling back the transaction.
+     */
+    public void rollback() throws JMSException {
+        try {
+            session.rollback();
+        } finally {
+            endBatch();
+        }
+    }
+
+    void markSent() {
+        if (uncommittedCount++ == 0) {
+            batchStart = System.currentTimeMillis();
+        }
+    }
+
+    private void endBatch() {
+        uncommittedCount = 0;
+        batchStart = 0;
+    }
+
+    long getLastReleased() {
+        return lastReleased;
+    }
+
+    void markReleased() {
+        lastReleased = System.currentTimeMillis();
+    }
+
+    void close() {
+        try {
+            messageProducer.close();
+        } catch (JMSException e) {
+            LOGGER.debug("JMSException while trying to close JMS Message Producer.", e);
+        } finally {
+            try {
+                session.close();
+            } catch (JMSException e) {
+                LOGGER.debug("JMSException while trying to close JMS Session.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smooks.cartridges.routing.SmooksRoutingException;
+
+import javax.jms.JMSException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of {@link PooledSession PooledSessions} created on a single JMS Connection.
+ * <p/>
+ * JMS Sessions (and their MessageProducers) are single threaded. The pool allows
+ * concurrent Smooks executions to share a single {@link JMSRouter} by handing each
+ * sending thread its own session for the duration of a send.
+ * <ul>
+ * <li><i>minSize</i>: number of sessions created up front and never evicted.
+ * <li><i>maxSize</i>: max number of sessions open at any time. Threads block in {@link #borrow()}
+ * (up to <i>maxWait</i> ms) while all sessions are in use.
+ * <li><i>idleTimeout</i>: number of ms a session above <i>minSize</i> may sit unused before it is closed.
+ * Idle sessions are checked whenever a session is returned to the pool, and by a background thread every
+ * <i>idleTimeout</i> ms (at least {@value #MIN_EVICTION_INTERVAL} ms), so they are also closed once traffic stops.
+ * The thread is only started if <i>maxSize</i> is greater than <i>minSize</i>.
+ * </ul>
+ */
+public class SessionPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionPool.class);
+    private static final long MIN_EVICTION_INTERVAL = 100;
+
+    private final Factory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeout;
+    private final long maxWait;
+
+    private final LinkedBlockingDeque<PooledSession> idleSessions = new LinkedBlockingDeque<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Semaphore permits;
+    private ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    public SessionPool(final Factory factory, final int minSize, final int maxSize, final long idleTimeout, final long maxWait) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid session pool size. 'minSize' (" + minSize + ") must be between 0 and 'maxSize' (" + maxSize + "), and 'maxSize' must be at least 1.");
+        }
+        this.factory = factory;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.maxWait = maxWait;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Create the minimum number of sessions, and start evicting idle sessions above the minimum.
+     *
+     * @throws JMSException Error creating a session.
+     */
+    public void initialize() throws JMSException {
+        for (int i = 0; i < minSize; i++) {
+            idleSessions.offerLast(factory.create());
+            size.incrementAndGet();
+        }
+
+        if (maxSize > minSize) {
+            final long evictionInterval = Math.max(MIN_EVICTION_INTERVAL, idleTimeout);
+            evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "smooks-jms-session-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            evictor.scheduleWithFixedDelay(() -> {
+                try {
+                    evictIdleSessions();
+                } catch (Throwable t) {
+                    LOGGER.debug("Failed to evict idle JMS Sessions.", t);
+                }
+            }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Borrow a session from the pool.
+     * <p/>
+     * The session must be returned to the pool through {@link #release(PooledSession)}, or
+     * {@link #invalidate(PooledSession)} if it is no longer usable.
+     *
+     * @return A session for the exclusive use of the calling thread.
+     * @throws SmooksRoutingException Timed out waiting for a session, or failed to create one.
+     */
+    public PooledSession borrow() throws SmooksRoutingException {
+        if (closed) {
+            throw new SmooksRoutingException("JMS Session pool is closed.");
+        }
+
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                throw new SmooksRoutingException("Timed out (" + maxWait + " ms) waiting for a JMS Session. All " + maxSize + " pooled sessions are in use.  Consider increasing the 'sessionPoolMaxSize' and/or 'sessionPoolMaxWait' param values.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmooksRoutingException("Interrupted while waiting for a JMS Session.", e);
+        }
+
+        PooledSession pooledSession = idleSessions.pollFirst();
+        if (pooledSession == null) {
+            try {
+                pooledSession = factory.create();
+                size.incrementAndGet();
+            } catch (JMSException e) {
+                permits.release();
+                throw new SmooksRoutingException("JMSException while trying to create pooled JMS Session.", e);
+            }
+        }
+
+        return pooledSession;
+    }
+
+    /**
+     * Return a session to the pool.
+     *
+     * @param pooledSession The session.
+     */
+    public void release(final PooledSession pooledSession) {
+        if (closed) {
+            close(pooledSession);
+        } else {
+            pooledSession.markReleased();
+            idleSessions.offerFirst(pooledSession);
+            evictIdleSessions();
+        }
+        permits.release();
+    }
+
+    /**
+     * Close a borrowed session instead of returning it to the pool e.g. after a JMSException.
+     *
+     * @param pooledSession The session.
+     */
+    public void invalidate(final PooledSession pooledSession) {
+        close(pooledSession);
+        permits.release();
+    }
+
+    public int getSize() {
+        return size.get();
+    }
+
+    public int getIdleCount() {
+        return idleSessions.size();
+    }
+
+    /**
+     * Close all idle sessions. Borrowed sessions are closed as they get returned.
+     */
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+
+        PooledSession pooledSession;
+        while ((pooledSession = idleSessions.pollFirst()) != null) {
+            close(pooledSession);
+        }
+    }
+
+    private synchronized void evictIdleSessions() {
+        final long now = System.currentTimeMillis();
+
+        while (size.get() > minSize) {
+            final PooledSession eldest = idleSessions.peekLast();
+            if (eldest == null || now - eldest.getLastReleased() < idleTimeout) {
+                return;
+            }
+            if (idleSessions.removeLastOccurrence(eldest)) {
+                LOGGER.debug("Closing JMS Session idle for more than {} ms.", idleTimeout);
+                close(eldest);
+            }
+        }
+    }
+
+    private void close(final PooledSession pooledSession) {
+        size.decrementAndGet();
+        pooledSession.close();
+    }
+
+    /**
+     * Creates the sessions for the pool.
+     */
+    public interface Factory {
+        PooledSession create() throws JMSException;
+    }
+}
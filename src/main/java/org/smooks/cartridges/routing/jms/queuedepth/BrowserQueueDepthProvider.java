@@ -0,0 +1,103 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms.queuedepth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+import java.util.Enumeration;
+
+/**
+ * {@link QueueDepthProvider} that counts the messages in the Queue using a {@link QueueBrowser}.
+ * <p/>
+ * Every call walks the full Queue (O(queue depth) broker round trips), so this provider
+ * is best used as the delegate of a {@link CachedQueueDepthProvider}.
+ */
+public class BrowserQueueDepthProvider implements QueueDepthProvider {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrowserQueueDepthProvider.class);
+
+    private Session session;
+    private Queue queue;
+
+    @Override
+    public void initialize(final Connection connection, final Queue queue) throws JMSException {
+        this.session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        this.queue = queue;
+    }
+
+    @Override
+    public synchronized int getQueueDepth() throws JMSException {
+        QueueBrowser queueBrowser = session.createBrowser(queue);
+
+        try {
+            int length = 0;
+            Enumeration queueEnum = queueBrowser.getEnumeration();
+            while (queueEnum.hasMoreElements()) {
+                length++;
+                queueEnum.nextElement();
+            }
+            return length;
+        } finally {
+            queueBrowser.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (session != null) {
+            try {
+                session.close();
+            } catch (JMSException e) {
+                LOGGER.debug("JMSException while trying to close JMS Session.", e);
+            } finally {
+                session = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms.queuedepth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smooks.cartridges.routing.BackPressureGate;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link QueueDepthProvider} that caches the Queue depth of a delegate provider, refreshing
+ * it in the background.
+ * <p/>
+ * Messages sent by the router since the last refresh are added to the cached depth, so the
+ * estimate errs on the high side between refreshes. {@link #getQueueDepth()} only reads
+ * volatile state.
+ * <p/>
+ * Routers blocked on the High Water Mark are {@link BackPressureGate#signal(String) signalled} when a
+ * refresh finds the Queue depth has dropped.
+ */
+public class CachedQueueDepthProvider implements QueueDepthProvider {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachedQueueDepthProvider.class);
+
+    private final QueueDepthProvider delegate;
+    private final long refreshInterval;
+    private final AtomicLong sent = new AtomicLong();
+    private volatile int depth;
+    private volatile long sentAtRefresh;
+    private String backPressureGateName;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Public constructor.
+     *
+     * @param delegate        The provider used to refresh the cached Queue depth.
+     * @param refreshInterval Number of ms between refreshes.
+     */
+    public CachedQueueDepthProvider(final QueueDepthProvider delegate, final long refreshInterval) {
+        this.delegate = delegate;
+        this.refreshInterval = refreshInterval;
+    }
+
+    @Override
+    public void initialize(final Connection connection, final Queue queue) throws JMSException {
+        final String queueName = queue.getQueueName();
+
+        backPressureGateName = QueueDepthProvider.getBackPressureGateName(queueName);
+        delegate.initialize(connection, queue);
+        refresh();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smooks-jms-queue-depth-" + queueName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (Throwable t) {
+                LOGGER.debug("Failed to refresh depth of JMS Queue '" + queueName + "'. Keeping last known depth (" + depth + ").", t);
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return (int) (depth + (sent.get() - sentAtRefresh));
+    }
+
+    @Override
+    public void onMessageSent() {
+        sent.incrementAndGet();
+        delegate.onMessageSent();
+    }
+
+    /**
+     * Refresh the cached Queue depth from the delegate provider.
+     *
+     * @throws JMSException Error getting the Queue depth from the delegate.
+     */
+    public void refresh() throws JMSException {
+        final int previousDepth = getQueueDepth();
+        final long sentBeforeRefresh = sent.get();
+        final int delegateDepth = delegate.getQueueDepth();
+
+        // Update the depth first so a concurrent reader can only overestimate...
+        depth = delegateDepth;
+        sentAtRefresh = sentBeforeRefresh;
+
+        if (delegateDepth < previousDepth && backPressureGateName != null) {
+            BackPressureGate.signal(backPressureGateName);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+        } finally {
+            delegate.close();
+        }
+    }
+}
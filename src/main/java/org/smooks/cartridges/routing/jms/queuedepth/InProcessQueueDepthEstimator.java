@@ -0,0 +1,156 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms.queuedepth;
+
+import org.smooks.assertion.AssertArgument;
+import org.smooks.cartridges.routing.BackPressureGate;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link QueueDepthProvider} that estimates the Queue depth from in-process counters,
+ * without talking to the broker.
+ * <p/>
+ * The depth is the number of messages sent to the Queue (by all routers in this JVM
+ * using this provider) minus the number of messages reported as consumed through
+ * {@link #acknowledge(String, String, int)}. This is only accurate when the consumers of the
+ * Queue live in the same JVM and report what they consume e.g.
+ * <pre>
+ * public void onMessage(Message message) {
+ *     ...
+ *     InProcessQueueDepthEstimator.acknowledge("ConnectionFactory", "queue/orders", 1);
+ * }
+ * </pre>
+ * Queues are told apart by the name of the router's ConnectionFactory as well as their own name, so that
+ * same-named Queues on different brokers are counted separately. A counter is dropped once the last provider
+ * using it is {@link #close() closed}. Consumed messages reported while no provider uses the counter are ignored.
+ */
+public class InProcessQueueDepthEstimator implements QueueDepthProvider {
+
+    private static final Map<String, Counter> COUNTERS = new HashMap<>();
+
+    private final String connectionFactoryName;
+    private String counterKey;
+    private Counter counter;
+
+    /**
+     * Public constructor.
+     *
+     * @param connectionFactoryName The name of the router's ConnectionFactory, as configured on the router.
+     */
+    public InProcessQueueDepthEstimator(final String connectionFactoryName) {
+        AssertArgument.isNotNullAndNotEmpty(connectionFactoryName, "connectionFactoryName");
+        this.connectionFactoryName = connectionFactoryName;
+    }
+
+    @Override
+    public void initialize(final Connection connection, final Queue queue) throws JMSException {
+        counterKey = getCounterKey(connectionFactoryName, queue.getQueueName());
+        synchronized (COUNTERS) {
+            counter = COUNTERS.computeIfAbsent(counterKey, key -> new Counter());
+            counter.references++;
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return (int) counter.queueDepth.get();
+    }
+
+    @Override
+    public void onMessageSent() {
+        counter.queueDepth.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+        if (counter == null) {
+            return;
+        }
+        synchronized (COUNTERS) {
+            if (--counter.references == 0) {
+                COUNTERS.remove(counterKey);
+            }
+        }
+        counter = null;
+    }
+
+    /**
+     * Report messages consumed from a Queue.
+     * <p/>
+     * The depth never drops below zero, so acknowledging messages this JVM did not send (e.g. messages enqueued
+     * before startup) does not hold back the High Water Mark for later sends.
+     *
+     * @param connectionFactoryName The name of the ConnectionFactory configured on the routers sending to the Queue.
+     * @param queueName             The Queue name, as returned by {@link Queue#getQueueName()}.
+     * @param count                 The number of consumed messages.
+     */
+    public static void acknowledge(final String connectionFactoryName, final String queueName, final int count) {
+        AssertArgument.isNotNullAndNotEmpty(connectionFactoryName, "connectionFactoryName");
+        AssertArgument.isNotNullAndNotEmpty(queueName, "queueName");
+
+        final Counter counter;
+        synchronized (COUNTERS) {
+            counter = COUNTERS.get(getCounterKey(connectionFactoryName, queueName));
+        }
+        if (counter != null) {
+            counter.queueDepth.updateAndGet(depth -> Math.max(0, depth - count));
+            BackPressureGate.signal(QueueDepthProvider.getBackPressureGateName(queueName));
+        }
+    }
+
+    private static String getCounterKey(final String connectionFactoryName, final String queueName) {
+        return connectionFactoryName + "#" + queueName;
+    }
+
+    private static class Counter {
+
+        private final AtomicLong queueDepth = new AtomicLong();
+        private int references;
+    }
+}
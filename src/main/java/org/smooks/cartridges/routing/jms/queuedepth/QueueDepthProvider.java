@@ -0,0 +1,101 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms.queuedepth;
+
+import org.smooks.cartridges.routing.BackPressureGate;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+
+/**
+ * Provides the number of messages sitting in a JMS Queue, for the
+ * {@link org.smooks.cartridges.routing.jms.JMSRouter} High Water Mark check.
+ * <p/>
+ * {@link #getQueueDepth()} is called before every message send, and by routers blocked on the
+ * High Water Mark each time they wake up, so implementations should make it cheap.
+ */
+public interface QueueDepthProvider {
+
+    /**
+     * Initialize the provider.
+     *
+     * @param connection The router's (started) JMS Connection.
+     * @param queue      The router's destination Queue.
+     * @throws JMSException Error initializing the provider.
+     */
+    void initialize(Connection connection, Queue queue) throws JMSException;
+
+    /**
+     * Get the (possibly estimated) number of messages in the Queue.
+     *
+     * @return The Queue depth.
+     * @throws JMSException Error getting the Queue depth.
+     */
+    int getQueueDepth() throws JMSException;
+
+    /**
+     * Notification that the router has sent a message to the Queue.
+     */
+    default void onMessageSent() {
+    }
+
+    /**
+     * Release any resources held by the provider.
+     */
+    default void close() {
+    }
+
+    /**
+     * Get the name of the {@link BackPressureGate} routers wait on while a Queue is above its High Water Mark.
+     * <p/>
+     * Providers should {@link BackPressureGate#signal(String) signal} the gate when they learn that the
+     * Queue depth has dropped.
+     *
+     * @param queueName The Queue name, as returned by {@link Queue#getQueueName()}.
+     * @return The gate name.
+     */
+    static String getBackPressureGateName(final String queueName) {
+        return "jms:queue:" + queueName;
+    }
+}
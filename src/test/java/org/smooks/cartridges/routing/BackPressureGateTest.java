@@ -0,0 +1,104 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link BackPressureGate}.
+ */
+public class BackPressureGateTest {
+
+    @Test
+    public void test_signal_wakes_waiters() throws Exception {
+        final AtomicBoolean capacity = new AtomicBoolean(false);
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+
+        try {
+            final long start = System.currentTimeMillis();
+            Future<Boolean> waiter1 = executorService.submit(() -> BackPressureGate.await("test:signal", capacity::get, 30000, 30000));
+            Future<Boolean> waiter2 = executorService.submit(() -> BackPressureGate.await("test:signal", capacity::get, 30000, 30000));
+
+            while (!BackPressureGate.hasWaiters("test:signal")) {
+                Thread.sleep(10);
+            }
+            // Let the waiters back off past their first checks...
+            Thread.sleep(500);
+            capacity.set(true);
+            BackPressureGate.signal("test:signal");
+
+            assertTrue(waiter1.get());
+            assertTrue(waiter2.get());
+            assertTrue(System.currentTimeMillis() - start < 10000);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        assertFalse(BackPressureGate.hasWaiters("test:signal"));
+    }
+
+    @Test
+    public void test_backoff_without_signal() throws Exception {
+        final AtomicInteger checks = new AtomicInteger();
+
+        assertTrue(BackPressureGate.await("test:backoff", () -> checks.incrementAndGet() > 3, 10000, 50));
+        assertEquals(4, checks.get());
+    }
+
+    @Test
+    public void test_timeout() throws Exception {
+        final long start = System.currentTimeMillis();
+
+        assertFalse(BackPressureGate.await("test:timeout", () -> false, 200, 50));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertFalse(BackPressureGate.hasWaiters("test:timeout"));
+    }
+}
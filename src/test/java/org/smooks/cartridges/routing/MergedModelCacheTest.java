@@ -0,0 +1,93 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing;
+
+import org.junit.Test;
+import org.smooks.api.bean.repository.BeanId;
+import org.smooks.engine.resource.visitor.dom.DOMModel;
+import org.smooks.testkit.MockExecutionContext;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link MergedModelCache}.
+ */
+public class MergedModelCacheTest {
+
+    @Test
+    public void test_model_reused_until_bean_context_changes() {
+        MockExecutionContext executionContext = new MockExecutionContext();
+        BeanId beanId = executionContext.getApplicationContext().getBeanIdStore().register("a");
+        executionContext.getBeanContext().addBean(beanId, "x", null);
+
+        Map<String, Object> model = MergedModelCache.getMergedModel(executionContext);
+        assertEquals("x", model.get("a"));
+        assertSame(model, MergedModelCache.getMergedModel(executionContext));
+
+        executionContext.getBeanContext().changeBean(beanId, "y", null);
+        assertEquals("y", MergedModelCache.getMergedModel(executionContext).get("a"));
+    }
+
+    @Test
+    public void test_model_rebuilt_when_dom_model_added() throws Exception {
+        MockExecutionContext executionContext = new MockExecutionContext();
+        BeanId beanId = executionContext.getApplicationContext().getBeanIdStore().register("a");
+        executionContext.getBeanContext().addBean(beanId, "x", null);
+
+        Map<String, Object> model = MergedModelCache.getMergedModel(executionContext);
+        assertFalse(model.containsKey("order"));
+
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        DOMModel.getModel(executionContext).getModels().put("order", document.createElement("order"));
+
+        Map<String, Object> mergedModel = MergedModelCache.getMergedModel(executionContext);
+        assertNotSame(model, mergedModel);
+        assertTrue(mergedModel.containsKey("order"));
+        assertEquals("x", mergedModel.get("a"));
+        assertSame(mergedModel, MergedModelCache.getMergedModel(executionContext));
+    }
+}
@@ -0,0 +1,105 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link FragmentBuffer}.
+ */
+public class FragmentBufferTest {
+
+    @Test
+    public void test_reset() throws Exception {
+        FragmentBuffer fragmentBuffer = new FragmentBuffer(0, -1, null, null, null);
+
+        fragmentBuffer.write("  <a>1</a>\n");
+        assertEquals(11, fragmentBuffer.length());
+        assertEquals("<a>1</a>", fragmentBuffer.toFragment(false));
+
+        fragmentBuffer.reset(FragmentBuffer.MIN_CAPACITY);
+        fragmentBuffer.write("<b>2</b>");
+        FragmentCharSequence view = (FragmentCharSequence) fragmentBuffer.toFragment(true);
+
+        // The view owns the buffer now...
+        fragmentBuffer.reset(FragmentBuffer.MIN_CAPACITY);
+        fragmentBuffer.write("<c>3</c>");
+        assertEquals("<c>3</c>", fragmentBuffer.toFragment(false));
+        assertEquals("<b>2</b>", view.toString());
+    }
+
+    @Test
+    public void test_spill() throws Exception {
+        Path spillDirectory = Files.createTempDirectory("fragment-buffer");
+        List<SpilledFragment> spilledFragments = new ArrayList<>();
+        FragmentBuffer fragmentBuffer = new FragmentBuffer(0, 8, spillDirectory, ".xml", spilledFragments);
+
+        fragmentBuffer.write("\n  <a>");
+        fragmentBuffer.write("12345 ");
+        fragmentBuffer.write(' ');
+        fragmentBuffer.write("6</a>\n".toCharArray(), 0, 6);
+        fragmentBuffer.write("  ");
+        assertEquals(-1, fragmentBuffer.length());
+
+        SpilledFragment spilledFragment = (SpilledFragment) fragmentBuffer.toFragment(false);
+        assertEquals(1, spilledFragments.size());
+        assertEquals("<a>12345  6</a>", spilledFragment.toString());
+
+        fragmentBuffer.reset(FragmentBuffer.MIN_CAPACITY);
+        fragmentBuffer.write("<b/>");
+        assertEquals("<b/>", fragmentBuffer.toFragment(false));
+
+        spilledFragment.delete();
+        assertFalse(Files.exists(spilledFragment.getPath()));
+        assertTrue(Files.deleteIfExists(spillDirectory));
+    }
+}
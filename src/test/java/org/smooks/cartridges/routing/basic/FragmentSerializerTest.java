@@ -50,18 +50,43 @@ import org.smooks.api.ExecutionContext;
 import org.smooks.api.SmooksException;
 import org.smooks.api.resource.visitor.sax.ng.AfterVisitor;
 import org.smooks.io.payload.JavaResult;
+import org.smooks.io.payload.StringSource;
+import org.smooks.support.StreamUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author <a href="mailto:tom.fennelly@jboss.com">tom.fennelly@jboss.com</a>
@@ -110,6 +135,287 @@ public class FragmentSerializerTest {
         XMLAssert.assertXMLEqual(new InputStreamReader(getClass().getResourceAsStream("frag2.xml")), new StringReader((String) router.routedObjects.get(1)));
     }
     
+    @Test
+    public void test_nested_fragments() throws IOException, SAXException {
+        Smooks smooks = new Smooks();
+
+        smooks.addVisitor(new FragmentSerializer().setBindTo("orderItems").setRetain(Optional.of(true)), "order-items");
+        smooks.addVisitor(new FragmentSerializer().setBindTo("orderItem"), "order-items/order-item");
+        smooks.addVisitor(new FragmentSerializer().setBindTo("product"), "order-items/order-item/product");
+        MockRouter router = new MockRouter().setBoundTo("orderItem");
+        smooks.addVisitor(router, "order-items/order-item");
+        MockRouter productRouter = new MockRouter().setBoundTo("product");
+        smooks.addVisitor(productRouter, "order-items/order-item/product");
+
+        JavaResult result = new JavaResult();
+        smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")), result);
+        assertEquals(2, router.routedObjects.size());
+        assertEquals(2, productRouter.routedObjects.size());
+
+        XMLUnit.setIgnoreWhitespace( true );
+        XMLAssert.assertXMLEqual(new InputStreamReader(getClass().getResourceAsStream("frag1.xml")), new StringReader((String) router.routedObjects.get(0)));
+        XMLAssert.assertXMLEqual(new InputStreamReader(getClass().getResourceAsStream("frag2.xml")), new StringReader((String) router.routedObjects.get(1)));
+        XMLAssert.assertXMLEqual("<?xml version=\"1.0\"?><product xmlns=\"http://order\">222</product>", (String) productRouter.routedObjects.get(1));
+        String orderItems = (String) result.getBean("orderItems");
+        assertEquals(2, orderItems.split("</order-item>", -1).length - 1);
+    }
+
+    @Test
+    public void test_self_nested_fragments() throws IOException, SAXException {
+        Smooks smooks = new Smooks();
+        MockRouter router = new MockRouter().setBoundTo("item");
+
+        smooks.addVisitor(new FragmentSerializer().setBindTo("item").setOmitXMLDeclaration(Optional.of(true)), "item");
+        smooks.addVisitor(router, "item");
+        smooks.filterSource(new StringSource("<items><item><item>x</item></item></items>"));
+
+        // The inner fragment completes first...
+        assertEquals(Arrays.asList("<item>x</item>", "<item><item>x</item></item>"), router.routedObjects);
+    }
+
+    @Test
+    public void test_bind_char_sequence() throws Exception {
+        Smooks smooks = new Smooks();
+
+        smooks.addVisitor(new FragmentSerializer().setBindTo("orderItem").setBindCharSequence(Optional.of(true)), "order-items/order-item");
+        MockRouter router = new MockRouter().setBoundTo("orderItem");
+        smooks.addVisitor(router, "order-items/order-item");
+
+        smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")));
+        assertEquals(2, router.routedObjects.size());
+
+        FragmentCharSequence fragment = (FragmentCharSequence) router.routedObjects.get(0);
+        XMLUnit.setIgnoreWhitespace( true );
+        XMLAssert.assertXMLEqual(new InputStreamReader(getClass().getResourceAsStream("frag1.xml")), new StringReader(fragment.toString()));
+        // The second fragment is serialized into a new buffer, leaving the first view intact...
+        XMLAssert.assertXMLEqual(new InputStreamReader(getClass().getResourceAsStream("frag2.xml")), new StringReader(router.routedObjects.get(1).toString()));
+        assertEquals(fragment.toString(), fragment.asCharBuffer().toString());
+        assertEquals(fragment.toString().substring(2, 10), fragment.subSequence(2, 10).toString());
+        assertTrue(fragment.toString().startsWith("<?xml"));
+        assertTrue(fragment.toString().endsWith("</order-item>"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes)) {
+            objectOutputStream.writeObject(fragment);
+        }
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertEquals(fragment.toString(), objectInputStream.readObject());
+        }
+    }
+
+    @Test
+    public void test_spill() throws IOException {
+        File spillDirectory = new File("target/fragment-spill");
+        spillDirectory.mkdirs();
+
+        for (boolean childContentOnly : new boolean[]{false, true}) {
+            Smooks smooks = new Smooks();
+
+            smooks.addVisitor(new FragmentSerializer().setBindTo("orderItem").setChildContentOnly(Optional.of(childContentOnly)), "order-items/order-item");
+            smooks.addVisitor(new FragmentSerializer().setBindTo("spilledOrderItem").setChildContentOnly(Optional.of(childContentOnly))
+                    .setSpillThreshold(Optional.of(10)).setSpillDirectory(Optional.of(spillDirectory.getPath())), "order-items/order-item");
+            MockRouter router = new MockRouter().setBoundTo("orderItem");
+            smooks.addVisitor(router, "order-items/order-item");
+            List<SpilledFragment> spilledFragments = new ArrayList<>();
+            List<String> spilledContent = new ArrayList<>();
+            smooks.addVisitor((AfterVisitor) (element, executionContext) -> {
+                SpilledFragment spilledFragment = (SpilledFragment) executionContext.getBeanContext().getBean("spilledOrderItem");
+                spilledFragments.add(spilledFragment);
+                spilledContent.add(spilledFragment.toString());
+            }, "order-items/order-item");
+            smooks.addVisitor(new FragmentSerializer().setBindTo("orderItems").setRetain(Optional.of(true))
+                    .setSpillThreshold(Optional.of(10)).setSpillDirectory(Optional.of(spillDirectory.getPath())), "order-items");
+
+            JavaResult result = new JavaResult();
+            smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")), result);
+
+            // Retained spill files are deleted at the end of the execution...
+            assertFalse(((SpilledFragment) result.getBean("orderItems")).getPath().toFile().exists());
+            assertEquals(2, spilledFragments.size());
+            assertEquals(router.routedObjects, spilledContent);
+            for (SpilledFragment spilledFragment : spilledFragments) {
+                assertEquals(spillDirectory.getAbsoluteFile().toPath(), spilledFragment.getPath().toAbsolutePath().getParent());
+                assertFalse(spilledFragment.getPath().toFile().exists());
+            }
+        }
+    }
+
+    @Test
+    public void test_spill_failed_execution() {
+        File spillDirectory = new File("target/fragment-spill-failed");
+        spillDirectory.mkdirs();
+        for (File file : spillDirectory.listFiles()) {
+            file.delete();
+        }
+
+        Smooks smooks = new Smooks();
+        smooks.addVisitor(new FragmentSerializer().setBindTo("orderItems").setFormat(Optional.of(FragmentSerializer.Format.JSON))
+                .setSpillThreshold(Optional.of(10)).setSpillDirectory(Optional.of(spillDirectory.getPath())), "order-items");
+        List<String> spillFiles = new ArrayList<>();
+        smooks.addVisitor((AfterVisitor) (element, executionContext) -> {
+            // Fails in the middle of the spilled "order-items" fragment...
+            spillFiles.addAll(Arrays.asList(spillDirectory.list()));
+            throw new SmooksException("Failed");
+        }, "order-items/order-item");
+
+        try {
+            smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")));
+            fail("Expected SmooksException");
+        } catch (SmooksException e) {
+            // Expected...
+        }
+
+        assertEquals(1, spillFiles.size());
+        assertTrue(spillFiles.get(0).endsWith(".json"));
+        assertEquals(0, spillDirectory.list().length);
+    }
+
+    @Test
+    public void test_projection() {
+        Smooks smooks = new Smooks();
+
+        smooks.addVisitor(new FragmentSerializer().setBindTo("included").setRetain(Optional.of(true)).setOmitXMLDeclaration(Optional.of(true))
+                .setIncludeElements(Optional.of("header/customer, order-items/*/product")).setExcludeAttributes(Optional.of("number")), "order");
+        smooks.addVisitor(new FragmentSerializer().setBindTo("excluded").setRetain(Optional.of(true)).setOmitXMLDeclaration(Optional.of(true))
+                .setExcludeElements(Optional.of("header,order-items/order-item/price")), "order");
+
+        JavaResult result = new JavaResult();
+        smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")), result);
+
+        assertEquals("<order xmlns=\"http://order\"><header><customer>Joe</customer></header><order-items>" +
+                "<order-item><product>111</product></order-item><order-item><product>222</product></order-item></order-items></order>", result.getBean("included"));
+        String excluded = (String) result.getBean("excluded");
+        assertFalse(excluded.contains("header"));
+        assertFalse(excluded.contains("price"));
+        assertEquals(2, excluded.split("<quantity>", -1).length - 1);
+    }
+
+    @Test
+    public void test_binary() throws Exception {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("smooks-config-04-ext.xml"));
+        MockRouter router = new MockRouter().setBoundTo("orderItem");
+        smooks.addVisitor(router, "order-items/order-item");
+
+        smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")));
+        assertEquals(2, router.routedObjects.size());
+
+        XMLUnit.setIgnoreWhitespace( true );
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        for (int i = 0; i < 2; i++) {
+            // Each bound fragment can be read on its own...
+            BinaryFragmentReader reader = new BinaryFragmentReader(new ByteArrayInputStream((byte[]) router.routedObjects.get(i)));
+            DocumentFragment fragment = reader.readFragment(document);
+            assertNull(reader.readFragment(document));
+            XMLAssert.assertXMLEqual(new InputStreamReader(getClass().getResourceAsStream("frag" + (i + 1) + ".xml")), new StringReader(toXml(fragment)));
+        }
+    }
+
+    @Test
+    public void test_binary_sink() throws Exception {
+        Smooks smooks = new Smooks();
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+        smooks.addVisitor(new FragmentSerializer() {
+            @Override
+            protected OutputStream openSinkOutputStream(ExecutionContext executionContext) {
+                return sink;
+            }
+        }.setResourceName(Optional.of("sink")).setFormat(Optional.of(FragmentSerializer.Format.BINARY)), "order-items/order-item");
+        smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")));
+
+        BinaryFragmentReader reader = new BinaryFragmentReader(new ByteArrayInputStream(sink.toByteArray()));
+        assertEquals(BinaryFragmentReader.START_FRAGMENT, reader.next());
+        assertEquals(BinaryFragmentReader.START_ELEMENT, reader.next());
+        assertEquals("order-item", reader.getName());
+        assertEquals("http://order", reader.getNamespaceURI());
+        assertEquals(1, reader.getAttributeCount());
+        assertEquals("xmlns", reader.getAttributeName(0));
+        assertEquals("http://order", reader.getAttributeValue(0));
+
+        // The second fragment reuses the names defined by the first...
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        XMLUnit.setIgnoreWhitespace( true );
+        XMLAssert.assertXMLEqual(new InputStreamReader(getClass().getResourceAsStream("frag2.xml")), new StringReader(toXml(reader.readFragment(document))));
+        assertNull(reader.readFragment(document));
+    }
+
+    @Test
+    public void test_sink_resource() throws IOException, SAXException {
+        File outputFile = new File("target/fragment-sink/order-items.xml");
+        outputFile.delete();
+
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("smooks-config-03-ext.xml"));
+        try {
+            smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")));
+        } finally {
+            smooks.close();
+        }
+
+        XMLUnit.setIgnoreWhitespace( true );
+        String expected = "<order-items>" + StreamUtils.readStream(new InputStreamReader(getClass().getResourceAsStream("frag1.xml"))).replaceAll("(?s)<\\?xml.*?-->", "")
+                + StreamUtils.readStream(new InputStreamReader(getClass().getResourceAsStream("frag2.xml"))).replaceAll("(?s)<\\?xml.*?-->", "") + "</order-items>";
+        // The prices are excluded...
+        expected = expected.replaceAll("<price>.*?</price>", "");
+        XMLAssert.assertXMLEqual(new StringReader(expected), new StringReader("<order-items>" + StreamUtils.readStream(new FileReader(outputFile)) + "</order-items>"));
+    }
+
+    @Test
+    public void test_sink_writer() throws IOException, SAXException {
+        Smooks smooks = new Smooks();
+        final StringWriter sink = new StringWriter();
+
+        smooks.addVisitor(new FragmentSerializer() {
+            @Override
+            protected Writer openSinkWriter(ExecutionContext executionContext) {
+                return sink;
+            }
+        }.setResourceName(Optional.of("sink")).setOmitXMLDeclaration(Optional.of(true)), "order-items/order-item");
+        smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")));
+
+        assertEquals(2, sink.toString().split("</order-item>", -1).length - 1);
+        assertFalse(sink.toString().contains("<?xml"));
+    }
+
+    @Test
+    public void test_json() throws IOException, SAXException {
+        Smooks smooks = new Smooks();
+        MockRouter router = new MockRouter().setBoundTo("order");
+
+        smooks.addVisitor(new FragmentSerializer().setBindTo("order").setFormat(Optional.of(FragmentSerializer.Format.JSON))
+                .setJsonArrayElements(Optional.of("order-item")), "order");
+        smooks.addVisitor(router, "order");
+        smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")));
+
+        assertEquals("{\"order\":{" +
+                "\"header\":{\"date\":\"Wed Nov 15 13:45:28 EST 2006\",\"customer\":{\"@number\":\"123123\",\"#text\":\"Joe\"}}," +
+                "\"order-items\":{\"order-item\":[" +
+                "{\"product\":\"111\",\"quantity\":\"2\",\"price\":\"8.90\"}," +
+                "{\"product\":\"222\",\"quantity\":\"7\",\"price\":\"5.20\"}]}}}", router.routedObjects.get(0));
+    }
+
+    @Test
+    public void test_json_sink() throws IOException, SAXException {
+        Smooks smooks = new Smooks();
+        final StringWriter sink = new StringWriter();
+
+        smooks.addVisitor(new FragmentSerializer() {
+            @Override
+            protected Writer openSinkWriter(ExecutionContext executionContext) {
+                return sink;
+            }
+        }.setResourceName(Optional.of("sink")).setFormat(Optional.of(FragmentSerializer.Format.JSON)).setChildContentOnly(Optional.of(true))
+                .setExcludeElements(Optional.of("price")), "order-items/order-item");
+        smooks.filterSource(new StreamSource(getClass().getResourceAsStream("input-message-02.xml")));
+
+        assertEquals("{\"product\":\"111\",\"quantity\":\"2\"}\n{\"product\":\"222\",\"quantity\":\"7\"}\n", sink.toString());
+    }
+
+    private static String toXml(Node node) throws TransformerException {
+        StringWriter xml = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(node), new StreamResult(xml));
+        return xml.toString();
+    }
+
     private static class MockRouter implements AfterVisitor {
 
         private String boundTo;
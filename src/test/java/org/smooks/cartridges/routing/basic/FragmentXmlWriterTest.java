@@ -0,0 +1,126 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import org.junit.Test;
+import org.smooks.io.DomSerializer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for {@link FragmentXmlWriter}.
+ */
+public class FragmentXmlWriterTest {
+
+    private static final String XML = "<b:root xmlns:b=\"urn:b\" z=\"1\" a=\"x &lt; &quot;y&quot; &amp; 'z'\">" +
+            "text &amp; &lt;more&gt; \"quoted\"<!--comment--><![CDATA[<raw>]]><b:child m=\"2\"/></b:root>";
+
+    @Test
+    public void test_matches_dom_serializer() throws Exception {
+        assertMatchesDomSerializer(XML);
+    }
+
+    @Test
+    public void test_matches_dom_serializer_with_rendered_declarations() throws Exception {
+        // No attributes sort among the declarations, so the rendered block is written as is...
+        assertMatchesDomSerializer("<root z=\"1\" a=\"2\" xmlt=\"3\"><child/></root>");
+        assertMatchesDomSerializer("<root><child/></root>");
+    }
+
+    private void assertMatchesDomSerializer(String xml) throws Exception {
+        Element root = parse(xml).getDocumentElement();
+        Map<String, String> namespaces = new LinkedHashMap<>();
+        namespaces.put("y", "urn:y");
+        namespaces.put("b", "urn:b");
+        namespaces.put("", "urn:default");
+        namespaces.put("c", "urn:c&\"");
+
+        // What the serializer used to do: declare the namespaces on a clone of the root...
+        Element clone = (Element) root.cloneNode(false);
+        for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+            if (!namespace.getKey().isEmpty() && !clone.getAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, namespace.getKey()).isEmpty()) {
+                continue;
+            }
+            clone.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, namespace.getKey().isEmpty() ? "xmlns" : "xmlns:" + namespace.getKey(), namespace.getValue());
+        }
+        StringWriter expected = new StringWriter();
+        StringWriter actual = new StringWriter();
+        DomSerializer domSerializer = new DomSerializer(false, true);
+
+        domSerializer.writeStartElement(clone, expected);
+        FragmentXmlWriter.writeStartElement(root, FragmentXmlWriter.toNamespaceDeclarations(namespaces), actual);
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                domSerializer.writeStartElement((Element) node, expected);
+                domSerializer.writeEndElement((Element) node, expected);
+                FragmentXmlWriter.writeStartElement((Element) node, null, actual);
+                FragmentXmlWriter.writeEndElement((Element) node, actual);
+            } else {
+                domSerializer.writeCharacterData(node, expected);
+                FragmentXmlWriter.writeCharacterData(node, actual);
+            }
+        }
+        domSerializer.writeEndElement(root, expected);
+        FragmentXmlWriter.writeEndElement(root, actual);
+
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    private Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setCoalescing(false);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,134 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.basic;
+
+import org.junit.Test;
+import org.smooks.api.SmooksException;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for {@link JsonFragmentEncoder}.
+ */
+public class JsonFragmentEncoderTest {
+
+    @Test
+    public void test_attributes_and_text() throws Exception {
+        assertEquals("{\"a\":{\"@x\":\"1\",\"b\":\"text\",\"c\":\"\",\"d\":{\"@y\":\"2\",\"#text\":\"more\"}}}\n",
+                encode("<a xmlns=\"urn:a\" xmlns:p=\"urn:p\" x=\"1\">\n  <b>text</b>\n  <c/>\n  <d p:y=\"2\">more</d>\n</a>"));
+    }
+
+    @Test
+    public void test_arrays() throws Exception {
+        // Listed elements are always arrays...
+        assertEquals("{\"a\":{\"item\":[\"1\",\"2\"],\"other\":[\"x\"]}}\n",
+                encode("<a><item>1</item><item>2</item><other>x</other></a>", "item", "other"));
+    }
+
+    @Test
+    public void test_duplicate_members() throws Exception {
+        assertDuplicateMember("<a><dup>4</dup><dup>5</dup></a>", "Cannot serialize element 'a' to JSON. It has more than one 'dup' member. Add 'dup' to 'jsonArrayElements' to write repeated elements as an array.");
+        assertDuplicateMember("<a><item>1</item><other>x</other><item>2</item></a>", "Cannot serialize element 'a' to JSON. Its 'item' child elements are not consecutive, so cannot be written to a single array.", "item");
+        assertDuplicateMember("<a><b>1</b>text<c>2</c>more</a>", "Cannot serialize element 'a' to JSON. It has mixed content, with more than one run of text between its child elements.");
+    }
+
+    @Test
+    public void test_mixed_content() throws Exception {
+        // Text after a child element becomes a text member. Elements after text are flattened into the string...
+        assertEquals("{\"a\":{\"b\":\"1\",\"#text\":\" tail\"}}\n", encode("<a><b>1</b> tail</a>"));
+        assertEquals("{\"a\":\"head 1 tail\"}\n", encode("<a>head <b>1</b> tail</a>"));
+    }
+
+    @Test
+    public void test_escaping() throws Exception {
+        assertEquals("{\"a\":{\"@q\":\"\\\"\",\"#text\":\"<x> & \\\\ \\n\\t \\u2028\"}}\n",
+                encode("<a q=\"&quot;\">&lt;x&gt; &amp; \\ &#10;&#9; &#x2028;</a>"));
+    }
+
+    private void assertDuplicateMember(String xml, String message, String... arrayElements) throws Exception {
+        try {
+            encode(xml, arrayElements);
+            fail("Expected SmooksException");
+        } catch (SmooksException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private String encode(String xml, String... arrayElements) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Element root = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))).getDocumentElement();
+        StringWriter json = new StringWriter();
+        JsonFragmentEncoder encoder = new JsonFragmentEncoder(json, "@", "#text", new HashSet<>(Arrays.asList(arrayElements)));
+
+        encoder.startFragment();
+        encode(root, encoder);
+        encoder.endFragment();
+
+        return json.toString();
+    }
+
+    private void encode(Element element, JsonFragmentEncoder encoder) throws IOException {
+        encoder.writeStartElement(element, null, Collections.emptySet());
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                encode((Element) node, encoder);
+            } else {
+                encoder.writeCharacterData(node);
+            }
+        }
+        encoder.writeEndElement(element);
+    }
+}
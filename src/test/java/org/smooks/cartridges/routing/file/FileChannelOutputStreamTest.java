@@ -0,0 +1,246 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.file;
+
+import org.junit.After;
+import org.junit.Test;
+import org.smooks.support.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link FileChannelOutputStream}.
+ */
+public class FileChannelOutputStreamTest {
+
+    private final File file = new File("target/file-channel-output-stream-test.txt");
+    private final File sourceFile = new File("target/file-channel-output-stream-test-source.txt");
+
+    @After
+    public void tearDown() {
+        file.delete();
+        sourceFile.delete();
+    }
+
+    @Test
+    public void test_write() throws IOException {
+        for (FileChannelOutputStream.ForcePolicy forcePolicy : FileChannelOutputStream.ForcePolicy.values()) {
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+            try (FileChannelOutputStream outputStream = new FileChannelOutputStream(open(), 16, forcePolicy, 20)) {
+                write(outputStream, expected, "a".getBytes());
+                write(outputStream, expected, "0123456789".getBytes());
+                // Larger than the buffer...
+                write(outputStream, expected, "abcdefghijklmnopqrstuvwxyz".getBytes());
+                write(outputStream, expected, "0123456789".getBytes());
+
+                outputStream.write('!');
+                expected.write('!');
+
+                final ByteBuffer byteBuffer = ByteBuffer.wrap("ABCDEFGHIJKLMNOPQRSTUVWXYZ".getBytes());
+                outputStream.write(byteBuffer);
+                expected.write("ABCDEFGHIJKLMNOPQRSTUVWXYZ".getBytes());
+                assertFalse(byteBuffer.hasRemaining());
+
+                outputStream.write(ByteBuffer.wrap("xyz".getBytes()));
+                expected.write("xyz".getBytes());
+            }
+
+            assertEquals(forcePolicy.name(), expected.toString(), new String(FileUtils.readFile(file)));
+        }
+    }
+
+    @Test
+    public void test_flush() throws IOException {
+        try (FileChannelOutputStream outputStream = new FileChannelOutputStream(open(), 1024, FileChannelOutputStream.ForcePolicy.NONE, 0)) {
+            outputStream.write("abc".getBytes());
+            assertEquals(0, file.length());
+
+            outputStream.flush();
+            assertEquals(3, file.length());
+        }
+    }
+
+    @Test
+    public void test_transferFrom() throws IOException {
+        FileUtils.writeFile("0123456789abcdefghijklmnopqrstuvwxy".getBytes(), sourceFile);
+        final ForceCountingFileChannel fileChannel = new ForceCountingFileChannel(open());
+
+        try (FileChannelOutputStream outputStream = new FileChannelOutputStream(fileChannel, 16, FileChannelOutputStream.ForcePolicy.EVERY_N_BYTES, 10);
+             FileChannel source = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ)) {
+            outputStream.write("!".getBytes());
+            assertEquals(35, outputStream.transferFrom(source));
+            assertEquals(35, source.position());
+            // Transferred bytes count towards the force interval...
+            assertEquals(3, fileChannel.forceCount);
+        }
+
+        assertEquals(4, fileChannel.forceCount);
+        assertEquals("!0123456789abcdefghijklmnopqrstuvwxy", new String(FileUtils.readFile(file)));
+    }
+
+    @Test(expected = IOException.class)
+    public void test_write_after_close() throws IOException {
+        final FileChannelOutputStream outputStream = new FileChannelOutputStream(open(), 1024, FileChannelOutputStream.ForcePolicy.ON_CLOSE, 0);
+        outputStream.close();
+        outputStream.write('a');
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static class ForceCountingFileChannel extends FileChannel {
+
+        private final FileChannel fileChannel;
+        private int forceCount;
+
+        private ForceCountingFileChannel(final FileChannel fileChannel) {
+            this.fileChannel = fileChannel;
+        }
+
+        @Override
+        public void force(final boolean metaData) throws IOException {
+            forceCount++;
+            fileChannel.force(metaData);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return fileChannel.read(dst);
+        }
+
+        @Override
+        public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+            return fileChannel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            return fileChannel.write(src);
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            return fileChannel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return fileChannel.position();
+        }
+
+        @Override
+        public FileChannel position(final long newPosition) throws IOException {
+            fileChannel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return fileChannel.size();
+        }
+
+        @Override
+        public FileChannel truncate(final long size) throws IOException {
+            fileChannel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException {
+            return fileChannel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(final ReadableByteChannel src, final long position, final long count) throws IOException {
+            return fileChannel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst, final long position) throws IOException {
+            return fileChannel.read(dst, position);
+        }
+
+        @Override
+        public int write(final ByteBuffer src, final long position) throws IOException {
+            return fileChannel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+            return fileChannel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+            return fileChannel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+            return fileChannel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            fileChannel.close();
+        }
+    }
+
+    private void write(final FileChannelOutputStream outputStream, final ByteArrayOutputStream expected, final byte[] bytes) throws IOException {
+        outputStream.write(bytes);
+        expected.write(bytes);
+    }
+}
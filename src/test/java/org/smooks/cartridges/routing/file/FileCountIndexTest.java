@@ -0,0 +1,159 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for {@link FileCountIndex}.
+ */
+public class FileCountIndexTest {
+
+    private final File directory = new File("target/file-count-index-test");
+    private final FileFilter fileFilter = file -> file.getName().endsWith(".xml");
+
+    @Before
+    public void setUp() throws IOException {
+        directory.mkdirs();
+        deleteFiles();
+        createFile("1.xml");
+        createFile("2.xml");
+        createFile("other.txt");
+    }
+
+    @After
+    public void tearDown() {
+        deleteFiles();
+    }
+
+    @Test
+    public void test_count() throws Exception {
+        final FileCountIndex fileCountIndex = FileCountIndex.acquire(directory, "${a}.xml", fileFilter);
+        try {
+            assertEquals(2, fileCountIndex.getCount());
+
+            // Own files are counted right away, and only once...
+            fileCountIndex.onFileCreating(new File(directory, "3.xml"));
+            assertEquals(3, fileCountIndex.getCount());
+            createFile("3.xml");
+            fileCountIndex.onFileCreating(new File(directory, "5.xml"));
+            fileCountIndex.onFileNotCreated(new File(directory, "5.xml"));
+            assertEquals(3, fileCountIndex.getCount());
+
+            // ... and external changes once the watch service reports them...
+            createFile("4.xml");
+            createFile("other2.txt");
+            new File(directory, "1.xml").delete();
+            waitForCount(fileCountIndex, 3);
+
+            new File(directory, "2.xml").delete();
+            new File(directory, "3.xml").delete();
+            waitForCount(fileCountIndex, 1);
+
+            fileCountIndex.rescan();
+            assertEquals(1, fileCountIndex.getCount());
+        } finally {
+            fileCountIndex.release();
+        }
+    }
+
+    @Test
+    public void test_shared() throws Exception {
+        final FileCountIndex fileCountIndex1 = FileCountIndex.acquire(directory, "${a}.xml", fileFilter);
+        final FileCountIndex fileCountIndex2 = FileCountIndex.acquire(new File(directory.getAbsolutePath()), "${a}.xml", fileFilter);
+
+        try {
+            assertEquals(fileCountIndex1, fileCountIndex2);
+        } finally {
+            fileCountIndex1.release();
+            fileCountIndex2.release();
+        }
+    }
+
+    @Test
+    public void test_watch_after_release() throws Exception {
+        // Releasing the last index stops the watch service. Acquiring again starts a new one...
+        FileCountIndex.acquire(directory, "${a}.xml", fileFilter).release();
+
+        final FileCountIndex fileCountIndex = FileCountIndex.acquire(directory, "${a}.xml", fileFilter);
+        try {
+            assertEquals(2, fileCountIndex.getCount());
+            createFile("3.xml");
+            waitForCount(fileCountIndex, 3);
+        } finally {
+            fileCountIndex.release();
+        }
+    }
+
+    private void waitForCount(final FileCountIndex fileCountIndex, final int expected) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while (fileCountIndex.getCount() != expected && System.currentTimeMillis() < start + 20000) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, fileCountIndex.getCount());
+    }
+
+    private File createFile(final String name) throws IOException {
+        final File file = new File(directory, name);
+        new FileOutputStream(file).close();
+        return file;
+    }
+
+    private void deleteFiles() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
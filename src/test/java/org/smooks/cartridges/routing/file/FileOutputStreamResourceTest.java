@@ -113,7 +113,7 @@ public class FileOutputStreamResourceTest {
         resource.visitBefore((Element) null, executionContext);
 
         OutputStream outputStream = new ResourceOutputStream(executionContext, resource.getResourceName()).getDelegateOutputStream();
-        assertTrue(outputStream instanceof FileOutputStream);
+        assertTrue(outputStream instanceof FileChannelOutputStream);
 
         resource.onPostFragment(new NodeFragment(DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument()), executionContext);
 
@@ -219,6 +219,49 @@ public class FileOutputStreamResourceTest {
         }
     }
 
+    @Test
+    public void testHighWaterMarkReleasedOnFileDelete() throws Exception {
+        final File destinationDir = new File("target/hwm-test");
+        final File existingFile = new File(destinationDir, "hwm.xml");
+        destinationDir.mkdirs();
+        new FileOutputStream(existingFile).close();
+
+        final Registry registry = new MockApplicationContext().getRegistry();
+        final ResourceConfig config = new DefaultResourceConfig("x", new Properties(), FileOutputStreamResource.class.getName());
+        config.setParameter("resourceName", "hwmResource");
+        config.setParameter("fileNamePattern", "hwm.xml");
+        config.setParameter("destinationDirectoryPattern", destinationDir.getAbsolutePath());
+        config.setParameter("highWaterMark", "1");
+        config.setParameter("highWaterMarkTimeout", "20000");
+        config.setParameter("highWaterMarkPollFrequency", "20000");
+        final FileOutputStreamResource hwmResource = new FileOutputStreamResource();
+        registry.lookup(new LifecycleManagerLookup()).applyPhase(hwmResource, new PostConstructLifecyclePhase(new Scope(registry, config, hwmResource)));
+
+        final Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            existingFile.delete();
+        });
+
+        final long start = System.currentTimeMillis();
+        consumer.start();
+        try {
+            hwmResource.getOutputStream(new MockExecutionContext()).close();
+
+            // Woken up by the delete, well before the next poll...
+            assertTrue(System.currentTimeMillis() - start < 10000);
+            assertFalse(existingFile.exists());
+        } finally {
+            consumer.join();
+            for (File file : destinationDir.listFiles()) {
+                file.delete();
+            }
+        }
+    }
+
     private String getFileContents(File file) throws IOException {
         return new String(FileUtils.readFile(file));
     }
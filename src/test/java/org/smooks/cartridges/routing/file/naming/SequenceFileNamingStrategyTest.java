@@ -0,0 +1,111 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.file.naming;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link SequenceFileNamingStrategy}.
+ */
+public class SequenceFileNamingStrategyTest {
+
+    @Test
+    public void test_format() {
+        SequenceFileNamingStrategy strategy = new SequenceFileNamingStrategy("node1", false);
+
+        String fileName = strategy.generateFileName("order-", null);
+        assertTrue(fileName, fileName.matches("order-node1-[0-9]+-[0-9]+"));
+        assertNotEquals(fileName, strategy.generateFileName("order-", null));
+
+        strategy = new SequenceFileNamingStrategy("node1", true);
+        fileName = strategy.generateFileName(null, null);
+        assertTrue(fileName, fileName.matches("node1-[0-9a-v]+-[0-9a-v]+"));
+    }
+
+    @Test
+    public void test_invalid_nodeId() {
+        try {
+            new SequenceFileNamingStrategy("a/b", false);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid nodeId 'a/b'. Must match '[A-Za-z0-9_.\\-]+'.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_unique_across_threads() throws Exception {
+        final SequenceFileNamingStrategy strategy = new SequenceFileNamingStrategy();
+        final Set<String> fileNames = ConcurrentHashMap.newKeySet();
+        final int namesPerThread = SequenceFileNamingStrategy.SEQUENCE_BLOCK_SIZE * 3;
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executorService.submit(() -> {
+                    for (int j = 0; j < namesPerThread; j++) {
+                        fileNames.add(strategy.generateFileName("f", null));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        assertEquals(8 * namesPerThread, fileNames.size());
+    }
+}
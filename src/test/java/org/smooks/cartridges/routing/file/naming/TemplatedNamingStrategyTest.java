@@ -67,4 +67,22 @@ public class TemplatedNamingStrategyTest {
         assertEquals("OrderId-40.txt", generateFileName);
     }
 
+    @Test
+    public void test_template_cache() throws NamingStrategyException {
+        TemplatedNamingStrategy strategy = new TemplatedNamingStrategy(2);
+        Order order = new Order();
+
+        for (int i = 0; i < 3; i++) {
+            order.setNr(i);
+            assertEquals("OrderId-" + i + ".txt", strategy.generateFileName("OrderId-${nr}.txt", order));
+        }
+        assertEquals(1, strategy.getCacheMisses());
+        assertEquals(2, strategy.getCacheHits());
+
+        assertEquals("a-2", strategy.generateFileName("a-${nr}", order));
+        assertEquals("b-2", strategy.generateFileName("b-${nr}", order));
+        assertEquals(3, strategy.getCacheMisses());
+        assertEquals(2, strategy.getCacheSize());
+    }
+
 }
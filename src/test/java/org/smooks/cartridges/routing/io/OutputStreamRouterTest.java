@@ -45,17 +45,40 @@ package org.smooks.cartridges.routing.io;
 import org.junit.Before;
 import org.junit.Test;
 import org.smooks.api.Registry;
+import org.smooks.api.SmooksConfigException;
+import org.smooks.api.TypedKey;
+import org.smooks.api.bean.repository.BeanId;
 import org.smooks.api.lifecycle.LifecycleManager;
 import org.smooks.api.resource.config.ResourceConfig;
 import org.smooks.engine.injector.Scope;
 import org.smooks.engine.lifecycle.PostConstructLifecyclePhase;
 import org.smooks.engine.lookup.LifecycleManagerLookup;
 import org.smooks.engine.resource.config.DefaultResourceConfig;
+import org.smooks.cartridges.routing.file.FileChannelOutputStream;
+import org.smooks.io.AbstractOutputStreamResource;
 import org.smooks.testkit.MockApplicationContext;
+import org.smooks.testkit.MockExecutionContext;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit test for {@link OutputStreamRouter}
@@ -78,6 +101,190 @@ public class OutputStreamRouterTest {
         assertEquals(resourceName, router.getResourceName());
     }
 
+    @Test
+    public void visitAfter_writes_bytes_and_chars() {
+        MockExecutionContext executionContext = new MockExecutionContext();
+        config.setParameter("encoding", "UTF-16BE");
+        BeanId beanId = initialize(executionContext);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        executionContext.put(TypedKey.of(AbstractOutputStreamResource.class.getName() + "#outputstream:" + resourceName), outputStream);
+
+        byte[] bytes = new byte[]{(byte) 0xC3, (byte) 0x28, 0x01};
+        executionContext.getBeanContext().addBean(beanId, bytes, null);
+        router.visitAfter(null, executionContext);
+        assertArrayEquals(bytes, outputStream.toByteArray());
+
+        outputStream.reset();
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(3);
+        byteBuffer.put(bytes).flip();
+        executionContext.getBeanContext().changeBean(beanId, byteBuffer, null);
+        router.visitAfter(null, executionContext);
+        assertArrayEquals(bytes, outputStream.toByteArray());
+        assertEquals(0, byteBuffer.position());
+
+        outputStream.reset();
+        char[] chars = new char[10000];
+        Arrays.fill(chars, '\u00e9');
+        String string = new String(chars);
+        executionContext.getBeanContext().changeBean(beanId, string, null);
+        router.visitAfter(null, executionContext);
+        assertArrayEquals(string.getBytes(StandardCharsets.UTF_16BE), outputStream.toByteArray());
+    }
+
+    @Test
+    public void visitAfter_streams_readers_and_files() throws Exception {
+        MockExecutionContext executionContext = new MockExecutionContext();
+        BeanId beanId = initialize(executionContext);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        TypedKey<OutputStream> outputStreamKey = TypedKey.of(AbstractOutputStreamResource.class.getName() + "#outputstream:" + resourceName);
+        executionContext.put(outputStreamKey, outputStream);
+
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 50000) {
+            content.append("abc\uD83D\uDE00\u00e9");
+        }
+        byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+
+        executionContext.getBeanContext().addBean(beanId, new StringReader(content.toString()), null);
+        router.visitAfter(null, executionContext);
+        assertArrayEquals(bytes, outputStream.toByteArray());
+
+        outputStream.reset();
+        executionContext.getBeanContext().changeBean(beanId, new ByteArrayInputStream(bytes), null);
+        router.visitAfter(null, executionContext);
+        assertArrayEquals(bytes, outputStream.toByteArray());
+
+        Path source = Files.createTempFile("source", ".txt");
+        Path target = Files.createTempFile("target", ".txt");
+        try {
+            Files.write(source, bytes);
+
+            outputStream.reset();
+            executionContext.getBeanContext().changeBean(beanId, source.toFile(), null);
+            router.visitAfter(null, executionContext);
+            assertArrayEquals(bytes, outputStream.toByteArray());
+
+            try (FileChannelOutputStream fileChannelOutputStream = new FileChannelOutputStream(FileChannel.open(target, StandardOpenOption.WRITE), 16, FileChannelOutputStream.ForcePolicy.NONE, 0)) {
+                executionContext.put(outputStreamKey, fileChannelOutputStream);
+                fileChannelOutputStream.write('x');
+                executionContext.getBeanContext().changeBean(beanId, source, null);
+                router.visitAfter(null, executionContext);
+            }
+            byte[] targetBytes = Files.readAllBytes(target);
+            assertEquals('x', targetBytes[0]);
+            assertArrayEquals(bytes, Arrays.copyOfRange(targetBytes, 1, targetBytes.length));
+        } finally {
+            Files.delete(source);
+            Files.delete(target);
+        }
+    }
+
+    @Test
+    public void visitAfter_shared_object_stream() throws Exception {
+        MockExecutionContext executionContext = new MockExecutionContext();
+        config.setParameter("sharedObjectStream", "true");
+        config.setParameter("objectStreamResetInterval", "2");
+        BeanId beanId = initialize(executionContext);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        executionContext.put(TypedKey.of(AbstractOutputStreamResource.class.getName() + "#outputstream:" + resourceName), outputStream);
+        executionContext.getBeanContext().addBean(beanId, new ArrayList<>(Arrays.asList(0)), null);
+        router.visitAfter(null, executionContext);
+        int firstBeanSize = outputStream.size();
+        for (int i = 1; i < 5; i++) {
+            executionContext.getBeanContext().changeBean(beanId, new ArrayList<>(Arrays.asList(i)), null);
+            router.visitAfter(null, executionContext);
+        }
+        assertTrue(outputStream.size() < firstBeanSize * 5);
+
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(Arrays.asList(i), objectInputStream.readObject());
+            }
+        }
+    }
+
+    @Test
+    public void visitAfter_framed_records() throws Exception {
+        MockExecutionContext executionContext = new MockExecutionContext();
+        config.setParameter("framing", "VARINT");
+        config.setParameter("recordChecksum", "true");
+        BeanId beanId = initialize(executionContext);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        executionContext.put(TypedKey.of(AbstractOutputStreamResource.class.getName() + "#outputstream:" + resourceName), outputStream);
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'a');
+        String[] records = {"<a/>", new String(chars), ""};
+        executionContext.getBeanContext().addBean(beanId, records[0].getBytes(StandardCharsets.UTF_8), null);
+        router.visitAfter(null, executionContext);
+        executionContext.getBeanContext().changeBean(beanId, records[1], null);
+        router.visitAfter(null, executionContext);
+        executionContext.getBeanContext().changeBean(beanId, new StringReader(records[2]), null);
+        router.visitAfter(null, executionContext);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+        for (String record : records) {
+            byte[] bytes = new byte[RecordFraming.VARINT.readLength(in)];
+            in.readFully(bytes);
+            assertEquals(record, new String(bytes, StandardCharsets.UTF_8));
+            Crc32c crc32c = new Crc32c();
+            crc32c.update(bytes, 0, bytes.length);
+            assertEquals((int) crc32c.getValue(), in.readInt());
+        }
+        assertEquals(-1, RecordFraming.VARINT.readLength(in));
+    }
+
+    @Test(expected = SmooksConfigException.class)
+    public void configure_framing_with_shared_object_stream() {
+        config.setParameter("framing", "FIXED32");
+        config.setParameter("sharedObjectStream", "true");
+        initialize(new MockExecutionContext());
+    }
+
+    @Test
+    public void visitAfter_flush_policy() {
+        MockExecutionContext executionContext = new MockExecutionContext();
+        config.setParameter("flushPolicy", "EVERY_N_BYTES");
+        config.setParameter("flushInterval", "10");
+        BeanId beanId = initialize(executionContext);
+
+        AtomicInteger flushCount = new AtomicInteger();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushCount.incrementAndGet();
+            }
+        };
+        executionContext.put(TypedKey.of(AbstractOutputStreamResource.class.getName() + "#outputstream:" + resourceName), outputStream);
+        executionContext.getBeanContext().addBean(beanId, "1234", null);
+        for (int i = 0; i < 5; i++) {
+            router.visitAfter(null, executionContext);
+        }
+        assertEquals(20, outputStream.size());
+        assertEquals(1, flushCount.get());
+
+        executionContext.getBeanContext().changeBean(beanId, new ArrayList<>(Arrays.asList(1)), null);
+        router.visitAfter(null, executionContext);
+        assertEquals(2, flushCount.get());
+    }
+
+    @Test(expected = SmooksConfigException.class)
+    public void configure_flush_policy_without_interval() {
+        config.setParameter("flushPolicy", "EVERY_N_WRITES");
+        initialize(new MockExecutionContext());
+    }
+
+    private BeanId initialize(final MockExecutionContext executionContext) {
+        Registry registry = executionContext.getApplicationContext().getRegistry();
+        LifecycleManager lifecycleManager = registry.lookup(new LifecycleManagerLookup());
+        BeanId beanId = executionContext.getApplicationContext().getBeanIdStore().register(this.beanId);
+        lifecycleManager.applyPhase(router, new PostConstructLifecyclePhase(new Scope(registry, config, router)));
+        return beanId;
+    }
+
     @Before
     public void setup() {
         config = createConfig(resourceName, beanId);
@@ -0,0 +1,103 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link RecordFraming} and {@link Crc32c}.
+ */
+public class RecordFramingTest {
+
+    @Test
+    public void test_length_round_trip() throws Exception {
+        int[] lengths = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE};
+
+        for (RecordFraming framing : new RecordFraming[]{RecordFraming.VARINT, RecordFraming.FIXED32}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int length : lengths) {
+                framing.writeLength(length, out);
+            }
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            for (int length : lengths) {
+                assertEquals(length, framing.readLength(in));
+            }
+            assertEquals(-1, framing.readLength(in));
+        }
+    }
+
+    @Test
+    public void test_varint_encoding() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordFraming.VARINT.writeLength(300, out);
+        assertArrayEquals(new byte[]{(byte) 0xAC, 0x02}, out.toByteArray());
+    }
+
+    @Test(expected = EOFException.class)
+    public void test_truncated_length() throws Exception {
+        RecordFraming.FIXED32.readLength(new ByteArrayInputStream(new byte[]{0, 0}));
+    }
+
+    @Test
+    public void test_crc32c() {
+        byte[] bytes = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+        Crc32c crc32c = new Crc32c();
+        crc32c.update(bytes, 0, bytes.length);
+        assertEquals(0xE3069283L, crc32c.getValue());
+
+        crc32c.reset();
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(bytes.length);
+        byteBuffer.put(bytes).flip();
+        crc32c.update(byteBuffer);
+        assertEquals(0xE3069283L, crc32c.getValue());
+    }
+}
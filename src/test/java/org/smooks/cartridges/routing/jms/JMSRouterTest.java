@@ -44,33 +44,46 @@ package org.smooks.cartridges.routing.jms;
 
 import com.mockrunner.mock.ejb.EJBMockObjectFactory;
 import com.mockrunner.mock.jms.JMSMockObjectFactory;
+import com.mockrunner.mock.jms.MockConnection;
 import com.mockrunner.mock.jms.MockQueue;
 import com.mockrunner.mock.jms.MockQueueConnectionFactory;
+import com.mockrunner.mock.jms.MockSession;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.mockejb.jndi.MockContextFactory;
 import org.smooks.api.Registry;
+import org.smooks.Smooks;
 import org.smooks.api.SmooksConfigException;
+import org.smooks.api.SmooksException;
 import org.smooks.api.lifecycle.LifecycleManager;
 import org.smooks.api.resource.config.ResourceConfig;
+import org.smooks.api.resource.visitor.sax.ng.AfterVisitor;
+import org.smooks.api.resource.visitor.sax.ng.BeforeVisitor;
 import org.smooks.cartridges.routing.SmooksRoutingException;
 import org.smooks.cartridges.routing.util.RouterTestHelper;
 import org.smooks.engine.injector.Scope;
 import org.smooks.engine.lifecycle.PostConstructLifecyclePhase;
 import org.smooks.engine.lookup.LifecycleManagerLookup;
 import org.smooks.engine.resource.config.DefaultResourceConfig;
+import org.smooks.io.payload.StringSource;
 import org.smooks.testkit.MockApplicationContext;
 import org.smooks.testkit.MockExecutionContext;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
+import javax.jms.CompletionListener;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageProducer;
 import javax.jms.TextMessage;
 import javax.naming.Context;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -192,6 +205,279 @@ public class JMSRouterTest {
         }
     }
 
+    @Test
+    public void visitAfter_above_hwmark_timeout_browser() throws ParserConfigurationException, JMSException, SAXException, IOException {
+        queue.clear();
+        final String beanId = "beanId";
+        final TestBean bean = RouterTestHelper.createBean();
+
+        final MockExecutionContext executionContext = RouterTestHelper.createExecutionContext(beanId, bean);
+
+        ResourceConfig config = new DefaultResourceConfig(selector, new Properties(), JMSRouter.class.getName());
+        config.setParameter("destinationName", queueName);
+        config.setParameter("beanId", beanId);
+        config.setParameter("highWaterMark", "2");
+        config.setParameter("highWaterMarkTimeout", "500");
+        config.setParameter("highWaterMarkPollFrequency", "100");
+        config.setParameter("queueDepthProvider", "BROWSER");
+        final JMSRouter router = new JMSRouter();
+        lifecycleManager.applyPhase(router, new PostConstructLifecyclePhase(new Scope(registry, config, router)));
+
+        router.visitAfter(null, executionContext);
+        router.visitAfter(null, executionContext);
+
+        try {
+            router.visitAfter(null, executionContext);
+            fail("Expected SmooksRoutingException");
+        } catch (SmooksRoutingException e) {
+            assertEquals("Failed to route JMS message to Queue destination 'testQueue'. Timed out (500 ms) waiting for queue length to drop below High Water Mark (2).  Consider increasing 'highWaterMark' and/or 'highWaterMarkTimeout' param values.", e.getMessage());
+        } finally {
+            queue.clear();
+        }
+    }
+
+    @Test
+    public void visitAfter_pooled_sessions() throws ParserConfigurationException, JMSException, SAXException, IOException {
+        queue.clear();
+        final String beanId = "beanId";
+        final TestBean bean = RouterTestHelper.createBean();
+
+        final MockExecutionContext executionContext = RouterTestHelper.createExecutionContext(beanId, bean);
+
+        ResourceConfig config = new DefaultResourceConfig(selector, new Properties(), JMSRouter.class.getName());
+        config.setParameter("destinationName", queueName);
+        config.setParameter("beanId", beanId);
+        config.setParameter("sessionPoolMinSize", "0");
+        config.setParameter("sessionPoolMaxSize", "4");
+        final JMSRouter router = new JMSRouter();
+        lifecycleManager.applyPhase(router, new PostConstructLifecyclePhase(new Scope(registry, config, router)));
+
+        router.visitAfter(null, executionContext);
+        router.visitAfter(null, executionContext);
+
+        assertEquals(2, queue.getCurrentMessageList().size());
+        queue.clear();
+    }
+
+    @Test
+    public void visitAfter_transacted_batches() throws IOException, SAXException, JMSException {
+        queue.clear();
+        final JMSRouter router = new JMSRouter();
+        router.setDestinationName(queueName);
+        router.setBeanId("beanId");
+        router.setHighWaterMark(-1);
+        router.setTransacted(Optional.of(true));
+        router.setBatchSize(3);
+
+        final Smooks smooks = new Smooks();
+        smooks.addVisitor((BeforeVisitor) (element, executionContext) -> executionContext.getBeanContext().addBean("beanId", element.getTextContent()), "x");
+        smooks.addVisitor(router, "x");
+        smooks.addVisitor((AfterVisitor) (element, executionContext) -> {
+            if (element.hasAttribute("fail")) {
+                throw new SmooksException("Failed");
+            }
+        }, "y");
+
+        try {
+            final MockConnection connection = connectionFactory.getLatestConnection();
+
+            // The remainder is committed at the end of the execution...
+            smooks.filterSource(new StringSource("<a><x>1</x><x>2</x><x>3</x><x>4</x><x>5</x><y/></a>"));
+            assertEquals(2, getNumberCommits(connection));
+            assertEquals(0, getNumberRollbacks(connection));
+            assertEquals(5, queue.getCurrentMessageList().size());
+
+            // ... unless the execution failed...
+            try {
+                smooks.filterSource(new StringSource("<a><x>6</x><y fail=\"true\"/><x>7</x></a>"));
+                fail("Expected SmooksException");
+            } catch (SmooksException e) {
+                assertEquals(2, getNumberCommits(connection));
+                assertEquals(1, getNumberRollbacks(connection));
+            }
+
+            // ... including in a visitAfter of the document element...
+            try {
+                smooks.filterSource(new StringSource("<y fail=\"true\"><x>8</x></y>"));
+                fail("Expected SmooksException");
+            } catch (SmooksException e) {
+                assertEquals(2, getNumberCommits(connection));
+                assertEquals(2, getNumberRollbacks(connection));
+            }
+        } finally {
+            smooks.close();
+            queue.clear();
+        }
+    }
+
+    @Test
+    public void visitAfter_concurrent_batches() throws Exception {
+        queue.clear();
+        final JMSRouter router = new JMSRouter();
+        router.setDestinationName(queueName);
+        router.setBeanId("beanId");
+        router.setHighWaterMark(-1);
+        router.setTransacted(Optional.of(true));
+        router.setBatchSize(3);
+        router.setSessionPoolMaxWait(1000);
+
+        final CountDownLatch batchStarted = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final Smooks smooks = new Smooks();
+        smooks.addVisitor((BeforeVisitor) (element, executionContext) -> executionContext.getBeanContext().addBean("beanId", element.getTextContent()), "x");
+        smooks.addVisitor(router, "x");
+        smooks.addVisitor((AfterVisitor) (element, executionContext) -> {
+            batchStarted.countDown();
+            try {
+                resume.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "y");
+
+        try {
+            final MockConnection connection = connectionFactory.getLatestConnection();
+            final Thread thread = new Thread(() -> smooks.filterSource(new StringSource("<a><x>1</x><y/></a>")));
+            thread.start();
+
+            // The pool is sized for batching, so a second execution gets a session while the first holds its batch open...
+            assertTrue(batchStarted.await(10, TimeUnit.SECONDS));
+            smooks.filterSource(new StringSource("<a><x>2</x></a>"));
+            assertEquals(1, getNumberCommits(connection));
+
+            resume.countDown();
+            thread.join();
+            assertEquals(2, getNumberCommits(connection));
+        } finally {
+            resume.countDown();
+            smooks.close();
+            queue.clear();
+        }
+    }
+
+    @Test
+    public void visitAfter_async_fallback_to_sync() throws ParserConfigurationException, JMSException, SAXException, IOException {
+        queue.clear();
+        final String beanId = "beanId";
+        final TestBean bean = RouterTestHelper.createBean();
+
+        final MockExecutionContext executionContext = RouterTestHelper.createExecutionContext(beanId, bean);
+
+        ResourceConfig config = new DefaultResourceConfig(selector, new Properties(), JMSRouter.class.getName());
+        config.setParameter("destinationName", queueName);
+        config.setParameter("beanId", beanId);
+        config.setParameter("sendMode", "async");
+        final JMSRouter router = new JMSRouter();
+        lifecycleManager.applyPhase(router, new PostConstructLifecyclePhase(new Scope(registry, config, router)));
+
+        // The mock JMS provider does not support JMS 2.0 asynchronous sends...
+        router.visitAfter(null, executionContext);
+        router.visitAfter(null, executionContext);
+        router.onPostExecution(executionContext);
+
+        assertNull(executionContext.getTerminationError());
+        assertEquals(2, queue.getCurrentMessageList().size());
+        queue.clear();
+    }
+
+    @Test
+    public void visitAfter_async_failure() {
+        final JMSRouter router = new JMSRouter() {
+            @Override
+            protected PooledSession createPooledSession() throws JMSException {
+                final PooledSession pooledSession = super.createPooledSession();
+                return new PooledSession(pooledSession.getSession(), createFailingAsyncProducer(pooledSession.getMessageProducer()));
+            }
+        };
+        router.setDestinationName(queueName);
+        router.setBeanId("beanId");
+        router.setHighWaterMark(-1);
+        router.setSendMode(SendMode.ASYNC);
+        router.setAsyncMaxInFlight(2);
+
+        final Smooks smooks = new Smooks();
+        smooks.addVisitor((BeforeVisitor) (element, executionContext) -> executionContext.getBeanContext().addBean("beanId", element.getTextContent()), "x");
+        smooks.addVisitor(router, "x");
+
+        try {
+            // The failed sends are reported at the end of the document...
+            smooks.filterSource(new StringSource("<a><x>1</x><x>2</x><x>3</x><x>4</x><x>5</x></a>"));
+            fail("Expected SmooksException");
+        } catch (SmooksException e) {
+            final Throwable cause = getRoutingException(e);
+            assertNotNull(cause);
+            assertEquals("5 asynchronous JMS Message send(s) to destination [queue/testQueue] failed.", cause.getMessage());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void visitAfter_async_failure_rolls_back_batch() throws JMSException {
+        queue.clear();
+        final JMSRouter router = new JMSRouter() {
+            @Override
+            protected PooledSession createPooledSession() throws JMSException {
+                final PooledSession pooledSession = super.createPooledSession();
+                return new PooledSession(pooledSession.getSession(), createFailingAsyncProducer(pooledSession.getMessageProducer()));
+            }
+        };
+        router.setDestinationName(queueName);
+        router.setBeanId("beanId");
+        router.setHighWaterMark(-1);
+        router.setSendMode(SendMode.ASYNC);
+        router.setTransacted(Optional.of(true));
+        router.setBatchSize(10);
+
+        final Smooks smooks = new Smooks();
+        smooks.addVisitor((BeforeVisitor) (element, executionContext) -> executionContext.getBeanContext().addBean("beanId", element.getTextContent()), "x");
+        smooks.addVisitor(router, "x");
+
+        try {
+            final MockConnection connection = connectionFactory.getLatestConnection();
+
+            // Every asynchronous send fails...
+            try {
+                smooks.filterSource(new StringSource("<a><x>1</x><x>2</x><x>3</x></a>"));
+                fail("Expected SmooksException");
+            } catch (SmooksException e) {
+                assertEquals(0, getNumberCommits(connection));
+                assertEquals(1, getNumberRollbacks(connection));
+            }
+        } finally {
+            smooks.close();
+            queue.clear();
+        }
+    }
+
+    @Test(expected = SmooksConfigException.class)
+    public void configureWithInvalidSendMode() {
+        ResourceConfig config = new DefaultResourceConfig(selector, new Properties(), JMSRouter.class.getName());
+        setManadatoryProperties(config);
+        config.setParameter("sendMode", "eventually");
+        final JMSRouter router = new JMSRouter();
+        lifecycleManager.applyPhase(router, new PostConstructLifecyclePhase(new Scope(registry, config, router)));
+    }
+
+    @Test(expected = SmooksConfigException.class)
+    public void configureWithBatchSizeNotTransacted() {
+        ResourceConfig config = new DefaultResourceConfig(selector, new Properties(), JMSRouter.class.getName());
+        setManadatoryProperties(config);
+        config.setParameter("batchSize", "10");
+        final JMSRouter router = new JMSRouter();
+        lifecycleManager.applyPhase(router, new PostConstructLifecyclePhase(new Scope(registry, config, router)));
+    }
+
+    @Test(expected = SmooksConfigException.class)
+    public void configureWithInvalidSessionPoolSize() {
+        ResourceConfig config = new DefaultResourceConfig(selector, new Properties(), JMSRouter.class.getName());
+        setManadatoryProperties(config);
+        config.setParameter("sessionPoolMinSize", "5");
+        config.setParameter("sessionPoolMaxSize", "2");
+        final JMSRouter router = new JMSRouter();
+        lifecycleManager.applyPhase(router, new PostConstructLifecyclePhase(new Scope(registry, config, router)));
+    }
+
     @Test
     public void setJndiContextFactory() {
         final String contextFactory = MockContextFactory.class.getName();
@@ -283,4 +569,42 @@ public class JMSRouterTest {
         } catch (InterruptedException e) {
         }
     }
+
+    private int getNumberCommits(MockConnection connection) {
+        int numberCommits = 0;
+        for (Object session : connection.getSessionList()) {
+            numberCommits += ((MockSession) session).getNumberCommits();
+        }
+        return numberCommits;
+    }
+
+    private int getNumberRollbacks(MockConnection connection) {
+        int numberRollbacks = 0;
+        for (Object session : connection.getSessionList()) {
+            numberRollbacks += ((MockSession) session).getNumberRollbacks();
+        }
+        return numberRollbacks;
+    }
+
+    private static Throwable getRoutingException(Throwable throwable) {
+        while (throwable != null && !(throwable instanceof SmooksRoutingException)) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+
+    private static MessageProducer createFailingAsyncProducer(final MessageProducer messageProducer) {
+        return (MessageProducer) Proxy.newProxyInstance(JMSRouterTest.class.getClassLoader(), new Class[]{MessageProducer.class}, (proxy, method, args) -> {
+            if (method.getName().equals("send") && args.length == 2 && args[1] instanceof CompletionListener) {
+                final Message message = (Message) args[0];
+                final CompletionListener completionListener = (CompletionListener) args[1];
+                new Thread(() -> {
+                    sleep(10);
+                    completionListener.onException(message, new JMSException("Broker unavailable"));
+                }).start();
+                return null;
+            }
+            return method.invoke(messageProducer, args);
+        });
+    }
 }
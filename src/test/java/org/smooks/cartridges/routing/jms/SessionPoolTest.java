@@ -0,0 +1,196 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms;
+
+import com.mockrunner.mock.jms.JMSMockObjectFactory;
+import com.mockrunner.mock.jms.MockQueue;
+import org.junit.Before;
+import org.junit.Test;
+import org.smooks.cartridges.routing.SmooksRoutingException;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for {@link SessionPool}.
+ */
+public class SessionPoolTest {
+
+    private Connection connection;
+    private MockQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        JMSMockObjectFactory jmsObjectFactory = new JMSMockObjectFactory();
+        connection = jmsObjectFactory.getMockQueueConnectionFactory().createConnection();
+        queue = jmsObjectFactory.getDestinationManager().createQueue("poolQueue");
+    }
+
+    @Test
+    public void test_borrow_up_to_max() throws Exception {
+        SessionPool sessionPool = new SessionPool(this::createPooledSession, 1, 2, 60000, 100);
+        sessionPool.initialize();
+        assertEquals(1, sessionPool.getSize());
+
+        PooledSession session1 = sessionPool.borrow();
+        PooledSession session2 = sessionPool.borrow();
+        assertNotSame(session1, session2);
+        assertEquals(2, sessionPool.getSize());
+
+        try {
+            sessionPool.borrow();
+            fail("Expected SmooksRoutingException");
+        } catch (SmooksRoutingException e) {
+            assertTrue(e.getMessage().startsWith("Timed out (100 ms) waiting for a JMS Session."));
+        }
+
+        sessionPool.release(session2);
+        assertSame(session2, sessionPool.borrow());
+    }
+
+    @Test
+    public void test_idle_eviction() throws Exception {
+        SessionPool sessionPool = new SessionPool(this::createPooledSession, 1, 3, 0, 100);
+        sessionPool.initialize();
+
+        PooledSession session1 = sessionPool.borrow();
+        PooledSession session2 = sessionPool.borrow();
+        PooledSession session3 = sessionPool.borrow();
+        assertEquals(3, sessionPool.getSize());
+
+        sessionPool.release(session1);
+        sessionPool.release(session2);
+        sessionPool.release(session3);
+        assertEquals(1, sessionPool.getSize());
+        assertEquals(1, sessionPool.getIdleCount());
+    }
+
+    @Test
+    public void test_idle_eviction_without_traffic() throws Exception {
+        SessionPool sessionPool = new SessionPool(this::createPooledSession, 0, 2, 200, 100);
+        sessionPool.initialize();
+
+        try {
+            PooledSession session1 = sessionPool.borrow();
+            PooledSession session2 = sessionPool.borrow();
+            sessionPool.release(session1);
+            sessionPool.release(session2);
+            assertEquals(2, sessionPool.getIdleCount());
+
+            // Evicted in the background, with no further borrow or release...
+            final long start = System.currentTimeMillis();
+            while (sessionPool.getSize() > 0 && System.currentTimeMillis() < start + 10000) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, sessionPool.getSize());
+            assertEquals(0, sessionPool.getIdleCount());
+        } finally {
+            sessionPool.close();
+        }
+    }
+
+    @Test
+    public void test_invalidate() throws Exception {
+        SessionPool sessionPool = new SessionPool(this::createPooledSession, 0, 1, 60000, 100);
+        sessionPool.initialize();
+
+        PooledSession session1 = sessionPool.borrow();
+        sessionPool.invalidate(session1);
+        assertEquals(0, sessionPool.getSize());
+        assertNotSame(session1, sessionPool.borrow());
+    }
+
+    @Test
+    public void test_concurrent_borrowers() throws Exception {
+        final int maxSize = 3;
+        final SessionPool sessionPool = new SessionPool(this::createPooledSession, 0, maxSize, 60000, 10000);
+        final Set<PooledSession> inUse = ConcurrentHashMap.newKeySet();
+        final AtomicInteger sharedSessions = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executorService.submit(() -> {
+                    for (int j = 0; j < 50; j++) {
+                        PooledSession pooledSession = sessionPool.borrow();
+                        try {
+                            if (!inUse.add(pooledSession)) {
+                                sharedSessions.incrementAndGet();
+                            }
+                            Thread.yield();
+                            inUse.remove(pooledSession);
+                        } finally {
+                            sessionPool.release(pooledSession);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        assertEquals(0, sharedSessions.get());
+        assertTrue(sessionPool.getSize() <= maxSize);
+    }
+
+    private synchronized PooledSession createPooledSession() throws JMSException {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        return new PooledSession(session, session.createProducer(queue));
+    }
+}
@@ -91,6 +91,12 @@ public class ActiveMQTest {
         test(smooks);
     }
     
+    @Test
+    public void test_xml_config_async_send() throws IOException, SAXException, JMSException, InterruptedException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("config-02.xml"));
+        test(smooks);
+    }
+
     @Test
     public void test_xml_programmatic() throws JMSException, InterruptedException {
         Smooks smooks = new Smooks();
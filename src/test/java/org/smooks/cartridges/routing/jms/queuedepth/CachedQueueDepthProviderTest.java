@@ -0,0 +1,123 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms.queuedepth;
+
+import com.mockrunner.mock.jms.MockQueue;
+import org.junit.Test;
+
+import javax.jms.Connection;
+import javax.jms.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for {@link CachedQueueDepthProvider}.
+ */
+public class CachedQueueDepthProviderTest {
+
+    @Test
+    public void test_sent_messages_added_to_cached_depth() throws Exception {
+        StubQueueDepthProvider delegate = new StubQueueDepthProvider();
+        CachedQueueDepthProvider queueDepthProvider = new CachedQueueDepthProvider(delegate, 60000);
+
+        delegate.depth.set(5);
+        queueDepthProvider.initialize(null, new MockQueue("testQueue"));
+        try {
+            assertEquals(5, queueDepthProvider.getQueueDepth());
+            assertEquals(1, delegate.calls.get());
+
+            queueDepthProvider.onMessageSent();
+            queueDepthProvider.onMessageSent();
+            assertEquals(7, queueDepthProvider.getQueueDepth());
+            assertEquals(1, delegate.calls.get());
+
+            // Consumers have taken all the messages...
+            delegate.depth.set(0);
+            queueDepthProvider.refresh();
+            assertEquals(0, queueDepthProvider.getQueueDepth());
+
+            queueDepthProvider.onMessageSent();
+            assertEquals(1, queueDepthProvider.getQueueDepth());
+        } finally {
+            queueDepthProvider.close();
+        }
+    }
+
+    @Test
+    public void test_background_refresh() throws Exception {
+        StubQueueDepthProvider delegate = new StubQueueDepthProvider();
+        CachedQueueDepthProvider queueDepthProvider = new CachedQueueDepthProvider(delegate, 10);
+
+        delegate.depth.set(10);
+        queueDepthProvider.initialize(null, new MockQueue("testQueue"));
+        try {
+            assertEquals(10, queueDepthProvider.getQueueDepth());
+
+            delegate.depth.set(3);
+            long start = System.currentTimeMillis();
+            while (queueDepthProvider.getQueueDepth() != 3 && System.currentTimeMillis() < start + 5000) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, queueDepthProvider.getQueueDepth());
+        } finally {
+            queueDepthProvider.close();
+        }
+    }
+
+    private static class StubQueueDepthProvider implements QueueDepthProvider {
+
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void initialize(Connection connection, Queue queue) {
+        }
+
+        @Override
+        public int getQueueDepth() {
+            calls.incrementAndGet();
+            return depth.get();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-routing-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.routing.jms.queuedepth;
+
+import com.mockrunner.mock.jms.MockQueue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for {@link InProcessQueueDepthEstimator}.
+ */
+public class InProcessQueueDepthEstimatorTest {
+
+    @Test
+    public void test_sent_minus_acknowledged() throws Exception {
+        InProcessQueueDepthEstimator estimator1 = new InProcessQueueDepthEstimator("ConnectionFactory");
+        InProcessQueueDepthEstimator estimator2 = new InProcessQueueDepthEstimator("ConnectionFactory");
+
+        estimator1.initialize(null, new MockQueue("estimatorQueue"));
+        estimator2.initialize(null, new MockQueue("estimatorQueue"));
+        try {
+            estimator1.onMessageSent();
+            estimator1.onMessageSent();
+            estimator2.onMessageSent();
+            assertEquals(3, estimator1.getQueueDepth());
+            assertEquals(3, estimator2.getQueueDepth());
+
+            InProcessQueueDepthEstimator.acknowledge("ConnectionFactory", "estimatorQueue", 2);
+            assertEquals(1, estimator1.getQueueDepth());
+
+            InProcessQueueDepthEstimator.acknowledge("ConnectionFactory", "estimatorQueue", 5);
+            assertEquals(0, estimator1.getQueueDepth());
+
+            // Over acknowledging does not absorb later sends...
+            estimator1.onMessageSent();
+            assertEquals(1, estimator1.getQueueDepth());
+        } finally {
+            estimator1.close();
+            estimator2.close();
+        }
+    }
+
+    @Test
+    public void test_counter_scope() throws Exception {
+        InProcessQueueDepthEstimator estimator1 = new InProcessQueueDepthEstimator("BrokerA");
+        InProcessQueueDepthEstimator estimator2 = new InProcessQueueDepthEstimator("BrokerB");
+
+        estimator1.initialize(null, new MockQueue("scopedQueue"));
+        estimator2.initialize(null, new MockQueue("scopedQueue"));
+        try {
+            // Same-named Queues behind different ConnectionFactories are counted separately...
+            estimator1.onMessageSent();
+            estimator1.onMessageSent();
+            estimator2.onMessageSent();
+            assertEquals(2, estimator1.getQueueDepth());
+            assertEquals(1, estimator2.getQueueDepth());
+
+            InProcessQueueDepthEstimator.acknowledge("BrokerB", "scopedQueue", 1);
+            assertEquals(2, estimator1.getQueueDepth());
+            assertEquals(0, estimator2.getQueueDepth());
+        } finally {
+            estimator1.close();
+            estimator2.close();
+        }
+
+        // ... and the counters are dropped with their last provider...
+        InProcessQueueDepthEstimator estimator3 = new InProcessQueueDepthEstimator("BrokerA");
+        estimator3.initialize(null, new MockQueue("scopedQueue"));
+        try {
+            assertEquals(0, estimator3.getQueueDepth());
+        } finally {
+            estimator3.close();
+        }
+    }
+}